@@ -0,0 +1,287 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.util.Progress;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 在内存中运行Mapper/Reducer：用框架自带的MapContextImpl、ReduceContextImpl构造真实的Context, 只替换输入和输出
+ * <p>
+ * 1、输入：Map端从byte[][]逐行读取到复用的value中, 与LineRecordReader一样不为每行创建对象;
+ * Reduce端从一段已排序、已序列化的字节数组中读取, 与Shuffle归并后的RawKeyValueIterator一致
+ * 2、输出：每条<k, v>序列化到复用的DataOutputBuffer中, 模拟Map端环形缓冲区/Reduce端输出流的序列化开销, 再交给Blackhole
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class InMemoryTask {
+
+    private InMemoryTask() {
+    }
+
+    /**
+     * 构造Map端Context
+     *
+     * @param conf
+     * @param reader
+     * @param blackhole
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static <KI, VI, KO extends Writable, VO extends Writable> Mapper<KI, VI, KO, VO>.Context mapContext(
+            Configuration conf, RecordReader<KI, VI> reader, Blackhole blackhole) throws IOException, InterruptedException {
+        reader.initialize(null, null);
+        MapContextImpl<KI, VI, KO, VO> mapContext = new MapContextImpl<>(conf,
+                new TaskAttemptID("bench", 1, TaskType.MAP, 0, 0),
+                reader, new SerializingWriter<>(blackhole), null, new CountersReporter(), null);
+        return new WrappedMapper<KI, VI, KO, VO>().getMapContext(mapContext);
+    }
+
+    /**
+     * 构造Reduce端Context
+     *
+     * @param conf
+     * @param input      已排序的序列化输入
+     * @param comparator 分组比较器
+     * @param keyClass
+     * @param valueClass
+     * @param blackhole
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static <KI, VI, KO extends Writable, VO extends Writable> Reducer<KI, VI, KO, VO>.Context reduceContext(
+            Configuration conf, SortedInput input, RawComparator<KI> comparator, Class<KI> keyClass, Class<VI> valueClass,
+            Blackhole blackhole) throws IOException, InterruptedException {
+        CountersReporter reporter = new CountersReporter();
+        ReduceContextImpl<KI, VI, KO, VO> reduceContext = new ReduceContextImpl<>(conf,
+                new TaskAttemptID("bench", 1, TaskType.REDUCE, 0, 0),
+                input.iterator(), reporter.getCounter("bench", "keys"), reporter.getCounter("bench", "values"),
+                new SerializingWriter<>(blackhole), null, reporter, comparator, keyClass, valueClass);
+        return new WrappedReducer<KI, VI, KO, VO>().getReducerContext(reduceContext);
+    }
+
+    /**
+     * 逐行读取内存中的文本, key为行首偏移量, value复用同一个对象
+     */
+    public static class ArrayLineReader<V extends Writable> extends RecordReader<LongWritable, V> {
+
+        private final byte[][] lines;
+        private final LongWritable key = new LongWritable();
+        private final V value;
+        private final ValueSetter<V> setter;
+        private int index;
+        private long offset;
+
+        /**
+         * 把一行字节设置到复用的value中
+         */
+        public interface ValueSetter<V> {
+            void set(V value, byte[] line);
+        }
+
+        public ArrayLineReader(byte[][] lines, V value, ValueSetter<V> setter) {
+            this.lines = lines;
+            this.value = value;
+            this.setter = setter;
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) {
+            index = 0;
+            offset = 0L;
+        }
+
+        @Override
+        public boolean nextKeyValue() {
+            if (index >= lines.length) {
+                return false;
+            }
+            byte[] line = lines[index++];
+            key.set(offset);
+            setter.set(value, line);
+            offset += line.length + 1;
+            return true;
+        }
+
+        @Override
+        public LongWritable getCurrentKey() {
+            return key;
+        }
+
+        @Override
+        public V getCurrentValue() {
+            return value;
+        }
+
+        @Override
+        public float getProgress() {
+            return lines.length == 0 ? 1.0f : index / (float) lines.length;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 已排序、已序列化的Reduce输入：所有<k, v>连续存放在同一个字节数组中
+     */
+    public static class SortedInput {
+
+        private final DataOutputBuffer buffer = new DataOutputBuffer();
+        private int[] offsets = new int[1024];
+        private int size;
+
+        /**
+         * 按排序后的顺序追加一条<k, v>, 调用方负责保证顺序
+         *
+         * @param key
+         * @param value
+         * @throws IOException
+         */
+        public void append(Writable key, Writable value) throws IOException {
+            if (size * 2 + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length << 1);
+            }
+            offsets[size * 2] = buffer.getLength();
+            key.write(buffer);
+            offsets[size * 2 + 1] = buffer.getLength();
+            value.write(buffer);
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int bytes() {
+            return buffer.getLength();
+        }
+
+        RawKeyValueIterator iterator() {
+            final byte[] data = buffer.getData();
+            final int end = buffer.getLength();
+            return new RawKeyValueIterator() {
+                private final DataInputBuffer key = new DataInputBuffer();
+                private final DataInputBuffer value = new DataInputBuffer();
+                private final Progress progress = new Progress();
+                private int index;
+
+                @Override
+                public DataInputBuffer getKey() {
+                    return key;
+                }
+
+                @Override
+                public DataInputBuffer getValue() {
+                    return value;
+                }
+
+                @Override
+                public boolean next() {
+                    if (index >= size) {
+                        return false;
+                    }
+                    int keyStart = offsets[index * 2];
+                    int valueStart = offsets[index * 2 + 1];
+                    int valueEnd = index + 1 < size ? offsets[index * 2 + 2] : end;
+                    key.reset(data, keyStart, valueStart - keyStart);
+                    value.reset(data, valueStart, valueEnd - valueStart);
+                    index++;
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public Progress getProgress() {
+                    return progress;
+                }
+            };
+        }
+    }
+
+    /**
+     * 把输出序列化到复用的缓冲区, 再把长度交给Blackhole, 防止被JIT消除
+     */
+    static class SerializingWriter<K extends Writable, V extends Writable> extends RecordWriter<K, V> {
+
+        private final DataOutputBuffer buffer = new DataOutputBuffer();
+        private final Blackhole blackhole;
+
+        SerializingWriter(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(K key, V value) throws IOException {
+            buffer.reset();
+            key.write(buffer);
+            value.write(buffer);
+            blackhole.consume(buffer.getLength());
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+
+    /**
+     * 计数器直接保存在内存的Counters中
+     */
+    static class CountersReporter extends StatusReporter {
+
+        private final Counters counters = new Counters();
+
+        @Override
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Mapper、Reducer基准测试：在内存中跑完整的run(..), 包括setup、cleanup和计数器
+ * <p>
+ * 1、每次调用处理RECORDS条输入, 通过@OperationsPerInvocation把吞吐量换算为 条/秒
+ * 2、配合-prof gc运行(profile jmh的默认参数), gc.alloc.rate.norm即每条输入分配的字节数
+ * 3、输入为固定种子生成的数据：单词服从长尾分布, 与真实文本的热点单词类似
+ * <p>
+ * 运行：mvn -Pjmh package exec:exec -Djmh.args="MapReduceBenchmark -prof gc"
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapReduceBenchmark {
+
+    /**
+     * 每次调用的输入条数：Map端为行数, Reduce端为<k, v>条数
+     */
+    public static final int RECORDS = 100_000;
+
+    /**
+     * TopNJob的topN, 也是topNReducer每次调用实际读取的条数
+     */
+    public static final int TOP_N = 100;
+
+    private static final int WORDS_PER_LINE = 10;
+    private static final int VOCABULARY = 10_000;
+
+    /**
+     * wordCountMapper的配置, 只有它随inMapperCombine重复运行
+     */
+    @State(Scope.Thread)
+    public static class WordCountMapperState {
+
+        /**
+         * WordCountJob.MyMapper是否开启Map端聚合
+         */
+        @Param({"false", "true"})
+        public boolean inMapperCombine;
+
+        private Configuration conf;
+
+        @Setup
+        public void setup() {
+            conf = new Configuration();
+            conf.setBoolean("wordcount.inmapper.enabled", inMapperCombine);
+        }
+    }
+
+    private Configuration conf;
+
+    // Map端输入
+    private byte[][] wordLines;
+    private byte[][] numberLines;
+    private byte[][] twoIntLines;
+
+    // Reduce端输入：已按Shuffle的排序规则排好序
+    private InMemoryTask.SortedInput wordCounts;
+    private InMemoryTask.SortedInput numbers;
+
+    private final WordCountJob.MyMapper wordCountMapper = new WordCountJob.MyMapper();
+    private final WordCountJob.MyReducer wordCountReducer = new WordCountJob.MyReducer();
+    private final TopNJobMapper topNMapper = new TopNJobMapper();
+    private final TopNReducer topNReducer = new TopNReducer();
+    private final WordSortMapper wordSortMapper = new WordSortMapper();
+
+    @Setup
+    public void setup() throws IOException {
+        conf = new Configuration();
+        conf.setLong("topN", TOP_N);
+
+        Random random = new Random(42L);
+        String[] vocabulary = new String[VOCABULARY];
+        for (int i = 0; i < VOCABULARY; i++) {
+            vocabulary[i] = "w" + Integer.toString(i, 36);
+        }
+
+        // 长尾分布：下标越小的单词出现越频繁
+        int[] wordIds = new int[RECORDS * WORDS_PER_LINE];
+        wordLines = new byte[RECORDS][];
+        numberLines = new byte[RECORDS][];
+        twoIntLines = new byte[RECORDS][];
+        long[] values = new long[RECORDS];
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < RECORDS; i++) {
+            line.setLength(0);
+            for (int j = 0; j < WORDS_PER_LINE; j++) {
+                int id = (int) (Math.pow(random.nextDouble(), 3) * VOCABULARY);
+                wordIds[i * WORDS_PER_LINE + j] = id;
+                line.append(j == 0 ? "" : " ").append(vocabulary[id]);
+            }
+            wordLines[i] = line.toString().getBytes(StandardCharsets.UTF_8);
+
+            values[i] = random.nextLong() >>> 1;
+            numberLines[i] = Long.toString(values[i]).getBytes(StandardCharsets.UTF_8);
+            twoIntLines[i] = (random.nextInt(1000) + " " + random.nextInt()).getBytes(StandardCharsets.UTF_8);
+        }
+
+        // WordCount的Reduce输入：<word, 1>按单词字节序排序, 取前RECORDS条
+        String[] words = new String[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            words[i] = vocabulary[wordIds[i]];
+        }
+        Arrays.sort(words);
+        wordCounts = new InMemoryTask.SortedInput();
+        Text word = new Text();
+        LongWritable one = new LongWritable(1L);
+        for (String w : words) {
+            word.set(w);
+            wordCounts.append(word, one);
+        }
+
+        // TopN的Reduce输入：<num, null>按降序排序
+        Arrays.sort(values);
+        numbers = new InMemoryTask.SortedInput();
+        LongWritable number = new LongWritable();
+        for (int i = RECORDS - 1; i >= 0; i--) {
+            number.set(values[i]);
+            numbers.append(number, NullWritable.get());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void wordCountMapper(WordCountMapperState state, Blackhole blackhole)
+            throws IOException, InterruptedException {
+        wordCountMapper.run(InMemoryTask.<LongWritable, Text, Text, LongWritable>mapContext(state.conf,
+                new InMemoryTask.ArrayLineReader<>(wordLines, new Text(), Text::set), blackhole));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    @SuppressWarnings("unchecked")
+    public void wordCountReducer(Blackhole blackhole) throws IOException, InterruptedException {
+        wordCountReducer.run(InMemoryTask.<Text, LongWritable, Text, LongWritable>reduceContext(conf, wordCounts,
+                (RawComparator<Text>) WritableComparator.get(Text.class), Text.class, LongWritable.class, blackhole));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void topNMapper(Blackhole blackhole) throws IOException, InterruptedException {
+        topNMapper.run(InMemoryTask.<LongWritable, Text, LongWritable, NullWritable>mapContext(conf,
+                new InMemoryTask.ArrayLineReader<>(numberLines, new Text(), Text::set), blackhole));
+    }
+
+    /**
+     * 输出满topN条后即结束, 只读取了TOP_N条输入, 吞吐量、每条分配的字节数按实际读取的条数计算;
+     * 提前结束的收益体现在每次调用的耗时与输入条数RECORDS无关
+     */
+    @Benchmark
+    @OperationsPerInvocation(TOP_N)
+    @SuppressWarnings("unchecked")
+    public void topNReducer(Blackhole blackhole) throws IOException, InterruptedException {
+        topNReducer.run(InMemoryTask.<LongWritable, NullWritable, LongWritable, NullWritable>reduceContext(conf, numbers,
+                new LongWritable.DecreasingComparator(), LongWritable.class, NullWritable.class, blackhole));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void wordSortMapper(Blackhole blackhole) throws IOException, InterruptedException {
+        wordSortMapper.run(InMemoryTask.<LongWritable, Text, TwoIntWritable, NullWritable>mapContext(conf,
+                new InMemoryTask.ArrayLineReader<>(twoIntLines, new Text(), Text::set), blackhole));
+    }
+}
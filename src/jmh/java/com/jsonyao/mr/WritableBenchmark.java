@@ -0,0 +1,164 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writable序列化基准测试：TwoIntWritable的序列化、反序列化、对象比较与字节比较,
+ * 以及StudentWritable与StudentJava(Java原生序列化)的对比
+ * <p>
+ * 配合-prof gc运行, gc.alloc.rate.norm即每次操作分配的字节数
+ * <p>
+ * 运行：mvn -Pjmh package exec:exec -Djmh.args="WritableBenchmark -prof gc"
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WritableBenchmark {
+
+    private final DataOutputBuffer out = new DataOutputBuffer();
+    private final DataInputBuffer in = new DataInputBuffer();
+    private final ByteArrayOutputStream javaOut = new ByteArrayOutputStream(256);
+
+    // TwoIntWritable
+    private final TwoIntWritable left = new TwoIntWritable();
+    private final TwoIntWritable right = new TwoIntWritable();
+    private final TwoIntWritable reused = new TwoIntWritable();
+    private final WritableComparator twoIntComparator = WritableComparator.get(TwoIntWritable.class);
+    private byte[] leftBytes;
+    private byte[] rightBytes;
+
+    // StudentWritable、StudentJava
+    private final StudentWritable studentWritable = new StudentWritable();
+    private final StudentJava studentJava = new StudentJava();
+    private byte[] studentWritableBytes;
+    private byte[] studentJavaBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        left.setInt1(3);
+        left.setInt2(2);
+        right.setInt1(3);
+        right.setInt2(1);
+        leftBytes = serialize(left);
+        rightBytes = serialize(right);
+
+        studentWritable.setId(1L);
+        studentWritable.setName("Hadoop");
+        studentJava.setId(1L);
+        studentJava.setName("Hadoop");
+        studentWritableBytes = serialize(studentWritable);
+        studentJavaBytes = serializeJava(studentJava);
+    }
+
+    @Benchmark
+    public int twoIntSerialize() throws IOException {
+        out.reset();
+        left.write(out);
+        return out.getLength();
+    }
+
+    @Benchmark
+    public TwoIntWritable twoIntDeserialize() throws IOException {
+        in.reset(leftBytes, leftBytes.length);
+        reused.readFields(in);
+        return reused;
+    }
+
+    @Benchmark
+    public int twoIntCompareObjects() {
+        return left.compareTo(right);
+    }
+
+    /**
+     * Shuffle排序实际走的路径：注册的RawComparator直接比较字节
+     */
+    @Benchmark
+    public int twoIntCompareBytes() {
+        return twoIntComparator.compare(leftBytes, 0, leftBytes.length, rightBytes, 0, rightBytes.length);
+    }
+
+    /**
+     * 未注册RawComparator时的路径：先反序列化两个对象再比较
+     */
+    @Benchmark
+    public int twoIntCompareDeserialized() throws IOException {
+        in.reset(leftBytes, leftBytes.length);
+        reused.readFields(in);
+        int int1 = reused.getInt1();
+        int int2 = reused.getInt2();
+        in.reset(rightBytes, rightBytes.length);
+        reused.readFields(in);
+        return TwoIntWritable.compare(int1, int2, reused.getInt1(), reused.getInt2());
+    }
+
+    @Benchmark
+    public int studentWritableSerialize() throws IOException {
+        out.reset();
+        studentWritable.write(out);
+        return out.getLength();
+    }
+
+    @Benchmark
+    public StudentWritable studentWritableDeserialize() throws IOException {
+        in.reset(studentWritableBytes, studentWritableBytes.length);
+        studentWritable.readFields(in);
+        return studentWritable;
+    }
+
+    @Benchmark
+    public int studentJavaSerialize() throws IOException {
+        javaOut.reset();
+        ObjectOutputStream oos = new ObjectOutputStream(javaOut);
+        oos.writeObject(studentJava);
+        oos.close();
+        return javaOut.size();
+    }
+
+    @Benchmark
+    public Object studentJavaDeserialize() throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(studentJavaBytes));
+        return ois.readObject();
+    }
+
+    private static byte[] serialize(Writable writable) throws IOException {
+        DataOutputBuffer buffer = new DataOutputBuffer();
+        writable.write(buffer);
+        byte[] bytes = new byte[buffer.getLength()];
+        System.arraycopy(buffer.getData(), 0, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    private static byte[] serializeJava(Object object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bytes);
+        oos.writeObject(object);
+        oos.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,109 @@
+package com.jsonyao.rpc;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.RPC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MyProtocol单次调用与批量调用的吞吐量对比：同一进程内启动RPC服务端, 经由本机回环地址调用
+ * <p>
+ * 每次基准调用处理NAMES个name, 吞吐量单位为 name/秒; single每个name一次往返, batch每batchSize个name一次往返;
+ * batchSize放在只有batch使用的BatchState中, single不随它重复运行
+ * <p>
+ * 运行：mvn -Pjmh package exec:exec -Djmh.args="MyProtocolBenchmark"
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MyProtocolBenchmark {
+
+    private static final int NAMES = 1000;
+
+    /**
+     * 批量调用的参数与请求数组, 只有batch(..)使用
+     */
+    @State(Scope.Thread)
+    public static class BatchState {
+
+        /**
+         * 每次批量调用的name个数
+         */
+        @Param({"10", "100", "1000"})
+        private int batchSize;
+
+        private String[] batch;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            batch = new String[batchSize];
+        }
+    }
+
+    private RPC.Server server;
+    private MyProtocol proxy;
+    private String[] names;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Configuration conf = new Configuration();
+        server = MyServer.start(conf, "localhost", 0);
+
+        InetSocketAddress addr = server.getListenerAddress();
+        proxy = RPC.getProxy(MyProtocol.class, MyProtocol.versionID, addr, conf);
+
+        names = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            names[i] = "name-" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        RPC.stopProxy(proxy);
+        MyServer.stop(server);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NAMES)
+    public void single(Blackhole blackhole) {
+        for (String name : names) {
+            blackhole.consume(proxy.hello(name));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NAMES)
+    public void batch(BatchState state, Blackhole blackhole) {
+        int batchSize = state.batchSize;
+        for (int from = 0; from < NAMES; from += batchSize) {
+            int size = Math.min(batchSize, NAMES - from);
+            String[] request = size == state.batch.length ? state.batch : new String[size];
+            System.arraycopy(names, from, request, 0, size);
+            blackhole.consume(proxy.helloBatch(request));
+        }
+    }
+}
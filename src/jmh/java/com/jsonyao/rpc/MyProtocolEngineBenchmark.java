@@ -0,0 +1,103 @@
+package com.jsonyao.rpc;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeysPublic;
+import org.apache.hadoop.ipc.RPC;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writable引擎与Protobuf引擎的对比：同一进程内启动对应引擎的MyServer, 经由本机回环地址调用
+ * <p>
+ * 1、延迟：每次调用的平均耗时, batchSize=1调用hello(..), 否则调用helloBatch(..)
+ * 2、字节数：客户端使用CountingSocketFactory, 每轮迭代结束时打印平均每次调用发送、接收的字节数
+ * <p>
+ * 运行：mvn -Pjmh package exec:exec -Djmh.args="MyProtocolEngineBenchmark"
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MyProtocolEngineBenchmark {
+
+    @Param({MyServer.ENGINE_WRITABLE, MyServer.ENGINE_PROTOBUF})
+    private String engine;
+
+    @Param({"1", "100"})
+    private int batchSize;
+
+    private RPC.Server server;
+    private MyProtocol proxy;
+    private String[] batch;
+
+    // 本轮迭代的调用次数, 以及开始时的字节计数
+    private long calls;
+    private long sent;
+    private long received;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Configuration conf = new Configuration();
+        conf.set(MyServer.ENGINE, engine);
+        server = MyServer.start(conf, "localhost", 0);
+
+        InetSocketAddress addr = server.getListenerAddress();
+        Configuration clientConf = new Configuration(conf);
+        clientConf.set(CommonConfigurationKeysPublic.HADOOP_RPC_SOCKET_FACTORY_CLASS_DEFAULT_KEY,
+                CountingSocketFactory.class.getName());
+        proxy = MyClient.getProxy(clientConf, addr);
+
+        batch = new String[batchSize];
+        for (int i = 0; i < batchSize; i++) {
+            batch[i] = "name-" + i;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        RPC.stopProxy(proxy);
+        MyServer.stop(server);
+    }
+
+    @Setup(Level.Iteration)
+    public void startCounting() {
+        calls = 0;
+        sent = CountingSocketFactory.SENT.sum();
+        received = CountingSocketFactory.RECEIVED.sum();
+    }
+
+    @TearDown(Level.Iteration)
+    public void printBytes() {
+        if (calls > 0) {
+            System.out.printf("%n%s batchSize=%d: %.1f bytes sent/call, %.1f bytes received/call%n", engine, batchSize,
+                    (double) (CountingSocketFactory.SENT.sum() - sent) / calls,
+                    (double) (CountingSocketFactory.RECEIVED.sum() - received) / calls);
+        }
+    }
+
+    @Benchmark
+    public Object call() {
+        calls++;
+        return batchSize == 1 ? proxy.hello(batch[0]) : proxy.helloBatch(batch);
+    }
+}
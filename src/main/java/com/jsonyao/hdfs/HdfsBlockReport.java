@@ -0,0 +1,294 @@
+package com.jsonyao.hdfs;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.WritableUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HDFS块分布报告：基于listFiles(..)返回的LocatedFileStatus, 列出目录下所有文件的block及其副本所在节点,
+ * 统计每个节点的block数、字节数, 以及副本分布的倾斜程度
+ * <p>
+ * 1、RPC：LocatedFileStatus在listing时已经带回了block位置, 不再为每个文件调用getFileBlockLocations(..), NameNode往返次数 ≈ 文件数 / 每批listing的条目数
+ * 2、输出：每个block一条记录, 边遍历边写到本地文件, 不在内存中保存block列表
+ * - text：制表符分隔, 路径 block序号 偏移量 长度 节点1,节点2,..
+ * - binary：紧凑的二进制格式, 节点名只在第一次出现时写一次, 之后用VInt编号引用, 偏移量、长度用VLong
+ * 3、汇总：每个节点的block数、字节数, 节点字节数的最大值/平均值、变异系数, 以及副本数不足的block数
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class HdfsBlockReport {
+
+    private static final Logger logger = LoggerFactory.getLogger(HdfsBlockReport.class);
+
+    /**
+     * 输出格式
+     */
+    public enum Format {
+        TEXT, BINARY
+    }
+
+    // 二进制格式的记录类型
+    static final int RECORD_HOST = 'H';
+    static final int RECORD_FILE = 'F';
+
+    private final FileSystem fileSystem;
+
+    public HdfsBlockReport(FileSystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * 汇总结果
+     */
+    public static class Summary {
+
+        private long files;
+        private long blocks;
+        private long bytes;
+        private long underReplicatedBlocks;
+        // 节点 => block副本数, 副本字节数
+        private final Map<String, long[]> hosts = new HashMap<>();
+
+        public long getFiles() {
+            return files;
+        }
+
+        public long getBlocks() {
+            return blocks;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getUnderReplicatedBlocks() {
+            return underReplicatedBlocks;
+        }
+
+        /**
+         * 节点 => {block副本数, 副本字节数}
+         */
+        public Map<String, long[]> getHosts() {
+            return hosts;
+        }
+
+        /**
+         * 节点副本字节数的 最大值 / 平均值, 1表示完全均匀
+         */
+        public double getMaxToMean() {
+            if (hosts.isEmpty()) {
+                return 0.0;
+            }
+            long max = 0L;
+            long total = 0L;
+            for (long[] host : hosts.values()) {
+                max = Math.max(max, host[1]);
+                total += host[1];
+            }
+            return total == 0 ? 0.0 : max / ((double) total / hosts.size());
+        }
+
+        /**
+         * 节点副本字节数的变异系数 = 标准差 / 平均值, 0表示完全均匀
+         */
+        public double getCoefficientOfVariation() {
+            if (hosts.isEmpty()) {
+                return 0.0;
+            }
+            double mean = 0.0;
+            for (long[] host : hosts.values()) {
+                mean += host[1];
+            }
+            mean /= hosts.size();
+            if (mean == 0.0) {
+                return 0.0;
+            }
+            double variance = 0.0;
+            for (long[] host : hosts.values()) {
+                variance += (host[1] - mean) * (host[1] - mean);
+            }
+            return Math.sqrt(variance / hosts.size()) / mean;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("%d files, %d blocks, %.1f MB, %d under-replicated blocks%n",
+                    files, blocks, bytes / 1048576.0, underReplicatedBlocks));
+            List<Map.Entry<String, long[]>> entries = new ArrayList<>(hosts.entrySet());
+            entries.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+            for (Map.Entry<String, long[]> entry : entries) {
+                builder.append(String.format("%s\t%d blocks\t%.1f MB%n", entry.getKey(), entry.getValue()[0],
+                        entry.getValue()[1] / 1048576.0));
+            }
+            builder.append(String.format("max/mean %.2f, cv %.2f", getMaxToMean(), getCoefficientOfVariation()));
+            return builder.toString();
+        }
+    }
+
+    /**
+     * 递归列出root下所有文件的block分布, 逐条写到output, 返回汇总结果
+     *
+     * @param root
+     * @param output 本地输出文件, 为null时只汇总
+     * @param format
+     * @return
+     * @throws IOException
+     */
+    public Summary report(Path root, java.nio.file.Path output, Format format) throws IOException {
+        long start = System.currentTimeMillis();
+        Summary summary = new Summary();
+        try (BlockSink sink = output == null ? null : format == Format.BINARY
+                ? new BinarySink(output) : new TextSink(output)) {
+            RemoteIterator<LocatedFileStatus> iterator = fileSystem.listFiles(root, true);
+            while (iterator.hasNext()) {
+                LocatedFileStatus status = iterator.next();
+                BlockLocation[] blockLocations = status.getBlockLocations();
+                summary.files++;
+                if (sink != null) {
+                    sink.file(status, blockLocations.length);
+                }
+
+                for (int i = 0; i < blockLocations.length; i++) {
+                    BlockLocation block = blockLocations[i];
+                    String[] hosts = block.getHosts();
+                    summary.blocks++;
+                    summary.bytes += block.getLength();
+                    if (hosts.length < status.getReplication()) {
+                        summary.underReplicatedBlocks++;
+                    }
+                    for (String host : hosts) {
+                        long[] histogram = summary.hosts.computeIfAbsent(host, k -> new long[2]);
+                        histogram[0]++;
+                        histogram[1] += block.getLength();
+                    }
+                    if (sink != null) {
+                        sink.block(status, i, block, hosts);
+                    }
+                }
+            }
+        }
+
+        logger.info("listed {} in {} ms: {} files, {} blocks on {} hosts", root, System.currentTimeMillis() - start,
+                summary.files, summary.blocks, summary.hosts.size());
+        return summary;
+    }
+
+    /**
+     * block记录的输出
+     */
+    private interface BlockSink extends Closeable {
+
+        void file(LocatedFileStatus status, int blocks) throws IOException;
+
+        void block(LocatedFileStatus status, int index, BlockLocation block, String[] hosts) throws IOException;
+    }
+
+    /**
+     * 路径 block序号 偏移量 长度 节点1,节点2,..
+     */
+    private static class TextSink implements BlockSink {
+
+        private final Writer writer;
+
+        TextSink(java.nio.file.Path output) throws IOException {
+            this.writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(output), StandardCharsets.UTF_8),
+                    64 * 1024);
+        }
+
+        @Override
+        public void file(LocatedFileStatus status, int blocks) {
+        }
+
+        @Override
+        public void block(LocatedFileStatus status, int index, BlockLocation block, String[] hosts) throws IOException {
+            writer.write(status.getPath().toUri().getPath());
+            writer.write('\t');
+            writer.write(Integer.toString(index));
+            writer.write('\t');
+            writer.write(Long.toString(block.getOffset()));
+            writer.write('\t');
+            writer.write(Long.toString(block.getLength()));
+            writer.write('\t');
+            writer.write(String.join(",", hosts));
+            writer.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * 二进制格式, 由以下记录组成：
+     * - 'H' VInt编号 UTF节点名：节点第一次出现时写一次
+     * - 'F' UTF路径 VLong长度 VInt副本数 VInt block数, 后面紧跟block数个block：VLong偏移量 VLong长度 VInt节点数 VInt节点编号..
+     */
+    private static class BinarySink implements BlockSink {
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> hostIds = new HashMap<>();
+
+        BinarySink(java.nio.file.Path output) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(output), 64 * 1024));
+        }
+
+        @Override
+        public void file(LocatedFileStatus status, int blocks) throws IOException {
+            // 先写本文件用到的新节点, 保证读取时节点定义先于引用
+            for (BlockLocation block : status.getBlockLocations()) {
+                for (String host : block.getHosts()) {
+                    if (!hostIds.containsKey(host)) {
+                        int id = hostIds.size();
+                        hostIds.put(host, id);
+                        out.writeByte(RECORD_HOST);
+                        WritableUtils.writeVInt(out, id);
+                        out.writeUTF(host);
+                    }
+                }
+            }
+
+            out.writeByte(RECORD_FILE);
+            out.writeUTF(status.getPath().toUri().getPath());
+            WritableUtils.writeVLong(out, status.getLen());
+            WritableUtils.writeVInt(out, status.getReplication());
+            WritableUtils.writeVInt(out, blocks);
+        }
+
+        @Override
+        public void block(LocatedFileStatus status, int index, BlockLocation block, String[] hosts) throws IOException {
+            WritableUtils.writeVLong(out, block.getOffset());
+            WritableUtils.writeVLong(out, block.getLength());
+            WritableUtils.writeVInt(out, hosts.length);
+            for (String host : hosts) {
+                WritableUtils.writeVInt(out, hostIds.get(host));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.jsonyao.hdfs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * HDFS目录并行上传：递归遍历本地目录, 用有界线程池同时上传多个文件
+ * <p>
+ * 1、目录：遍历是先序的, 遇到目录时由遍历线程先mkdirs(..), 之后该目录下的文件用createNonRecursive(..)创建,
+ * NameNode不必为每个文件再检查、创建一遍父目录
+ * 2、大文件：每个文件一个任务, 通过FileChannel读到线程复用的缓冲区(hdfs.upload.buffer.size)再写出, 记录每个文件的进度
+ * 3、小文件：小于hdfs.upload.small.file.size的文件攒成一批(最多hdfs.upload.batch.files个), 一个任务顺序上传一批,
+ * 整个文件一次读入、一次写出; 分批只减少线程池的任务调度开销, 每个文件仍然各自create + close, 即每个文件两次NameNode往返,
+ * NameNode的压力与逐个上传相同。需要减少NameNode文件数、往返次数时, 先用com.jsonyao.mr.SmallFilePacker打包成SequenceFile再上传
+ * 4、有界：线程池的任务队列有界, 队列满时由遍历线程自己执行任务, 遍历不会远远跑在上传前面, 内存不随文件数增长
+ * 5、进度：每隔一段时间打印已上传的文件数、字节数以及正在上传的大文件的进度, 结束时打印 文件/秒、MB/秒
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class HdfsDirectoryUploader {
+
+    private static final Logger logger = LoggerFactory.getLogger(HdfsDirectoryUploader.class);
+
+    public static final String THREADS = "hdfs.upload.threads";
+    public static final String BUFFER_SIZE = "hdfs.upload.buffer.size";
+    public static final String SMALL_FILE_SIZE = "hdfs.upload.small.file.size";
+    public static final String BATCH_FILES = "hdfs.upload.batch.files";
+    public static final String REPORT_INTERVAL_MS = "hdfs.upload.report.interval.ms";
+
+    public static final int DEFAULT_THREADS = 8;
+    public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+    public static final long DEFAULT_SMALL_FILE_SIZE = 1024 * 1024;
+    public static final int DEFAULT_BATCH_FILES = 64;
+    public static final long DEFAULT_REPORT_INTERVAL_MS = 5000L;
+
+    private final FileSystem fileSystem;
+    private final int threads;
+    private final int bufferSize;
+    private final long smallFileSize;
+    private final int batchFiles;
+    private final long reportIntervalMs;
+
+    // 每个上传线程复用一个缓冲区
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    /**
+     * 上传结果统计
+     */
+    public static class Result {
+
+        private final long files;
+        private final long bytes;
+        private final long millis;
+
+        Result(long files, long bytes, long millis) {
+            this.files = files;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(1L, millis) / 1000.0;
+            return String.format("%d files, %.1f MB in %d ms, %.0f files/s, %.1f MB/s", files, bytes / 1048576.0,
+                    millis, files / seconds, bytes / 1048576.0 / seconds);
+        }
+    }
+
+    /**
+     * 一次上传的共享状态
+     */
+    private static class Progress {
+
+        private final AtomicLong files = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        // 正在上传的大文件 => 已上传字节数, 总字节数
+        private final Map<java.nio.file.Path, long[]> inFlight = new ConcurrentHashMap<>();
+        private final AtomicReference<IOException> error = new AtomicReference<>();
+    }
+
+    /**
+     * 按conf中的hdfs.upload.*配置创建上传器
+     *
+     * @param fileSystem
+     * @param conf
+     */
+    public HdfsDirectoryUploader(FileSystem fileSystem, Configuration conf) {
+        this.fileSystem = fileSystem;
+        this.threads = Math.max(1, conf.getInt(THREADS, DEFAULT_THREADS));
+        this.bufferSize = Math.max(4096, conf.getInt(BUFFER_SIZE, DEFAULT_BUFFER_SIZE));
+        this.smallFileSize = conf.getLong(SMALL_FILE_SIZE, DEFAULT_SMALL_FILE_SIZE);
+        this.batchFiles = Math.max(1, conf.getInt(BATCH_FILES, DEFAULT_BATCH_FILES));
+        this.reportIntervalMs = Math.max(1L, conf.getLong(REPORT_INTERVAL_MS, DEFAULT_REPORT_INTERVAL_MS));
+        // FSDataOutputStream只接受byte[], 用堆内缓冲区, 避免直接内存到byte[]的额外拷贝
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(bufferSize));
+    }
+
+    /**
+     * 递归上传本地目录src到HDFS目录dst下, 已存在的文件会被覆盖; src为文件时上传为dst
+     *
+     * @param src
+     * @param dst
+     * @return
+     * @throws IOException
+     */
+    public Result upload(java.nio.file.Path src, Path dst) throws IOException {
+        long start = System.currentTimeMillis();
+        Progress progress = new Progress();
+
+        if (Files.isRegularFile(src)) {
+            if (dst.getParent() != null) {
+                fileSystem.mkdirs(dst.getParent());
+            }
+            uploadFile(src, dst, progress);
+            return finish(src, dst, progress, start);
+        }
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+        try (Stream<java.nio.file.Path> stream = Files.walk(src)) {
+            List<java.nio.file.Path> batch = new ArrayList<>(batchFiles);
+            long lastReport = start;
+            for (java.nio.file.Path file : (Iterable<java.nio.file.Path>) stream::iterator) {
+                if (progress.error.get() != null) {
+                    break;
+                }
+                Path target = target(src, file, dst);
+                if (Files.isDirectory(file)) {
+                    // 先序遍历, 目录先于其中的文件创建
+                    fileSystem.mkdirs(target);
+                } else if (Files.isRegularFile(file)) {
+                    if (Files.size(file) < smallFileSize) {
+                        batch.add(file);
+                        if (batch.size() == batchFiles) {
+                            submitBatch(executor, batch, src, dst, progress);
+                            batch = new ArrayList<>(batchFiles);
+                        }
+                    } else {
+                        executor.execute(() -> run(() -> uploadFile(file, target, progress), progress));
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= reportIntervalMs) {
+                    report(progress, start, now);
+                    lastReport = now;
+                }
+            }
+            if (!batch.isEmpty()) {
+                submitBatch(executor, batch, src, dst, progress);
+            }
+
+            executor.shutdown();
+            while (!executor.awaitTermination(reportIntervalMs, TimeUnit.MILLISECONDS)) {
+                report(progress, start, System.currentTimeMillis());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while uploading " + src, e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (progress.error.get() != null) {
+            throw progress.error.get();
+        }
+        return finish(src, dst, progress, start);
+    }
+
+    private Result finish(java.nio.file.Path src, Path dst, Progress progress, long start) {
+        Result result = new Result(progress.files.get(), progress.bytes.get(), System.currentTimeMillis() - start);
+        logger.info("uploaded {} to {}: {}", src, dst, result);
+        return result;
+    }
+
+    /**
+     * 一个任务顺序上传一批小文件, 父目录已由遍历线程创建; 每个文件仍是独立的HDFS文件
+     */
+    private void submitBatch(ThreadPoolExecutor executor, List<java.nio.file.Path> batch, java.nio.file.Path src,
+                             Path dst, Progress progress) {
+        executor.execute(() -> run(() -> {
+            for (java.nio.file.Path file : batch) {
+                uploadSmallFile(file, target(src, file, dst), progress);
+            }
+        }, progress));
+    }
+
+    /**
+     * 小文件：一次读入、一次写出
+     */
+    private void uploadSmallFile(java.nio.file.Path file, Path target, Progress progress) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > buffer.capacity()) {
+                // 遍历之后文件变大了
+                uploadFile(file, target, progress);
+                return;
+            }
+            buffer.clear();
+            while (channel.read(buffer) > 0) {
+                // 读满为止
+            }
+        }
+
+        try (FSDataOutputStream out = createNonRecursive(target)) {
+            out.write(buffer.array(), 0, buffer.position());
+        }
+        progress.files.incrementAndGet();
+        progress.bytes.addAndGet(buffer.position());
+    }
+
+    /**
+     * 大文件：分块读写, 记录文件进度
+     */
+    private void uploadFile(java.nio.file.Path file, Path target, Progress progress) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        long[] fileProgress = new long[]{0L, Files.size(file)};
+        progress.inFlight.put(file, fileProgress);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             FSDataOutputStream out = createNonRecursive(target)) {
+            while (true) {
+                buffer.clear();
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer.array(), 0, read);
+                fileProgress[0] += read;
+                progress.bytes.addAndGet(read);
+            }
+        } finally {
+            progress.inFlight.remove(file);
+        }
+        progress.files.incrementAndGet();
+        logger.debug("uploaded {} ({} bytes)", target, fileProgress[0]);
+    }
+
+    private FSDataOutputStream createNonRecursive(Path target) throws IOException {
+        return fileSystem.createNonRecursive(target, true, bufferSize,
+                fileSystem.getDefaultReplication(target), fileSystem.getDefaultBlockSize(target), null);
+    }
+
+    private void report(Progress progress, long start, long now) {
+        double seconds = Math.max(1L, now - start) / 1000.0;
+        long bytes = progress.bytes.get();
+        logger.info("uploaded {} files, {} MB, {} files/s, {} MB/s", progress.files.get(),
+                String.format("%.1f", bytes / 1048576.0),
+                String.format("%.0f", progress.files.get() / seconds),
+                String.format("%.1f", bytes / 1048576.0 / seconds));
+        for (Map.Entry<java.nio.file.Path, long[]> entry : progress.inFlight.entrySet()) {
+            long[] fileProgress = entry.getValue();
+            logger.info("  {}: {}%", entry.getKey(),
+                    fileProgress[1] == 0 ? 100 : fileProgress[0] * 100 / fileProgress[1]);
+        }
+    }
+
+    /**
+     * src下的file对应dst下的路径
+     */
+    private static Path target(java.nio.file.Path src, java.nio.file.Path file, Path dst) {
+        java.nio.file.Path relative = src.relativize(file);
+        if (relative.toString().isEmpty()) {
+            return dst;
+        }
+        return new Path(dst, relative.toString().replace(java.io.File.separatorChar, '/'));
+    }
+
+    private interface IOTask {
+
+        void run() throws IOException;
+    }
+
+    /**
+     * 记录第一个失败, 之后的任务不再执行
+     */
+    private static void run(IOTask task, Progress progress) {
+        if (progress.error.get() != null) {
+            return;
+        }
+        try {
+            task.run();
+        } catch (IOException e) {
+            progress.error.compareAndSet(null, e);
+        } catch (RuntimeException e) {
+            progress.error.compareAndSet(null, new IOException(e));
+        }
+    }
+}
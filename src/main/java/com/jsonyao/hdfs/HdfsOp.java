@@ -7,6 +7,7 @@ import org.apache.hadoop.io.IOUtils;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
 
 /**
  * JAVA代码操作HDFS：上传文件、下载文件、删除文件
@@ -32,6 +33,7 @@ public class HdfsOp {
         // 获取配置
         Configuration conf = new Configuration();
         conf.set("fs.defaultFS", "hdfs://bigdata01:9000");// 即core-site.xml中配置的fs.defaultFS
+        conf.set(HdfsSync.CHECKSUM_COMBINE_MODE, "COMPOSITE_CRC");// getFileChecksum(..)返回与block大小无关的CRC, 可以与本地文件比较
 
         // 获取HDFS文件系统对象
         FileSystem fileSystem = FileSystem.get(conf);
@@ -39,14 +41,26 @@ public class HdfsOp {
         // 上传文件
 //        put(fileSystem);
 
+        // 并行上传整个目录
+//        putDir(fileSystem, conf);
+
         // 下载文件
         get(fileSystem);
 
+        // 按block并行分段下载文件
+//        getRanged(fileSystem, conf);
+
+        // 增量同步目录：只传输两边不一致的文件, 中断后续传
+//        sync(fileSystem, conf);
+
         // 删除文件: true表示递归删除
 //        delete(fileSystem);
 
         // 获取文件所有block块
 //        list(fileSystem);
+
+        // 批量获取目录下所有文件的block块, 并统计各节点的分布
+//        blockReport(fileSystem);
     }
 
     /**
@@ -87,6 +101,18 @@ public class HdfsOp {
         }
     }
 
+    /**
+     * 批量获取目录下所有文件的block块：listing时一并返回block位置, 不再每个文件单独请求NameNode;
+     * block明细写到本地文件, 控制台只输出各节点的block数、字节数和倾斜程度
+     *
+     * @param fileSystem
+     * @throws IOException
+     */
+    private static void blockReport(FileSystem fileSystem) throws IOException {
+        HdfsBlockReport report = new HdfsBlockReport(fileSystem);
+        System.out.println(report.report(new Path("/"), Paths.get("D:\\blocks.tsv"), HdfsBlockReport.Format.TEXT));
+    }
+
     /**
      * 删除文件
      *
@@ -113,6 +139,43 @@ public class HdfsOp {
         IOUtils.copyBytes(fis, fos, 1024, true);
     }
 
+    /**
+     * 按block并行分段下载文件, 并行度、缓冲区大小见hdfs.download.*
+     *
+     * @param fileSystem
+     * @param conf
+     * @throws IOException
+     */
+    private static void getRanged(FileSystem fileSystem, Configuration conf) throws IOException {
+        HdfsRangedDownloader downloader = new HdfsRangedDownloader(fileSystem, conf);
+        System.out.println(downloader.download(new Path("/hadoop-3.2.0.tar.gz"), Paths.get("D:\\hadoop-3.2.0.tar.gz")));
+    }
+
+    /**
+     * 递归并行上传整个目录, 线程数、缓冲区大小、小文件分批见hdfs.upload.*
+     *
+     * @param fileSystem
+     * @param conf
+     * @throws IOException
+     */
+    private static void putDir(FileSystem fileSystem, Configuration conf) throws IOException {
+        HdfsDirectoryUploader uploader = new HdfsDirectoryUploader(fileSystem, conf);
+        System.out.println(uploader.upload(Paths.get("D:\\Users\\yaocs2\\Desktop\\data"), new Path("/data")));
+    }
+
+    /**
+     * 增量同步目录：先比较大小、修改时间, 再比较CRC校验和, 只传输不一致的文件, 见hdfs.sync.*
+     *
+     * @param fileSystem
+     * @param conf
+     * @throws IOException
+     */
+    private static void sync(FileSystem fileSystem, Configuration conf) throws IOException {
+        HdfsSync sync = new HdfsSync(fileSystem, conf);
+        System.out.println(sync.push(Paths.get("D:\\Users\\yaocs2\\Desktop\\data"), new Path("/data")));
+        System.out.println(sync.pull(new Path("/data"), Paths.get("D:\\data")));
+    }
+
     /**
      * 上传文件
      *
@@ -0,0 +1,225 @@
+package com.jsonyao.hdfs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HDFS并行分段下载：按block边界把文件切成多个范围, 多个线程并发地用positional read读取, 再通过FileChannel写到本地文件的对应偏移量
+ * <p>
+ * 1、切分：getFileBlockLocations(..)返回的每个block即一个范围, 不同范围通常落在不同DataNode上, 并发读取可以叠加多个节点的带宽;
+ * 设置了hdfs.download.max.range.size时, 超过该大小的block再切成多个范围, 单个block的文件也能并行下载
+ * 2、读：每个线程打开自己的输入流, read(position, buf, ..)是无状态的定位读, 不依赖、也不修改流的当前位置
+ * 3、写：FileChannel.write(buffer, position)按偏移量写, 多个线程写同一个本地文件互不干扰, 不需要加锁
+ * 4、进度：每隔一段时间打印已下载字节数及MB/秒
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class HdfsRangedDownloader {
+
+    private static final Logger logger = LoggerFactory.getLogger(HdfsRangedDownloader.class);
+
+    public static final String PARALLELISM = "hdfs.download.parallelism";
+    public static final String BUFFER_SIZE = "hdfs.download.buffer.size";
+    public static final String REPORT_INTERVAL_MS = "hdfs.download.report.interval.ms";
+    public static final String MAX_RANGE_SIZE = "hdfs.download.max.range.size";
+
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+    public static final long DEFAULT_REPORT_INTERVAL_MS = 5000L;
+
+    private final FileSystem fileSystem;
+    private final int parallelism;
+    private final int bufferSize;
+    private final long reportIntervalMs;
+    private final long maxRangeSize;
+
+    /**
+     * 下载结果统计
+     */
+    public static class Result {
+
+        private final long bytes;
+        private final int ranges;
+        private final long millis;
+
+        Result(long bytes, int ranges, long millis) {
+            this.bytes = bytes;
+            this.ranges = ranges;
+            this.millis = millis;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public int getRanges() {
+            return ranges;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f MB in %d ranges, %d ms, %.1f MB/s", bytes / 1048576.0, ranges, millis,
+                    bytes / 1048576.0 * 1000.0 / Math.max(1L, millis));
+        }
+    }
+
+    /**
+     * 按conf中的hdfs.download.*配置创建下载器
+     *
+     * @param fileSystem
+     * @param conf
+     */
+    public HdfsRangedDownloader(FileSystem fileSystem, Configuration conf) {
+        this.fileSystem = fileSystem;
+        this.parallelism = Math.max(1, conf.getInt(PARALLELISM, DEFAULT_PARALLELISM));
+        this.bufferSize = Math.max(4096, conf.getInt(BUFFER_SIZE, DEFAULT_BUFFER_SIZE));
+        this.reportIntervalMs = Math.max(1L, conf.getLong(REPORT_INTERVAL_MS, DEFAULT_REPORT_INTERVAL_MS));
+        // 默认0, 即按block切分
+        long rangeSize = conf.getLong(MAX_RANGE_SIZE, 0L);
+        this.maxRangeSize = rangeSize > 0 ? rangeSize : Long.MAX_VALUE;
+    }
+
+    /**
+     * 下载src到本地dst, dst已存在时会被覆盖; 失败时删除不完整的dst
+     *
+     * @param src
+     * @param dst
+     * @return
+     * @throws IOException
+     */
+    public Result download(Path src, java.nio.file.Path dst) throws IOException {
+        FileStatus status = fileSystem.getFileStatus(src);
+        if (status.isDirectory()) {
+            throw new IOException("not a file: " + src);
+        }
+        long length = status.getLen();
+        BlockLocation[] blocks = fileSystem.getFileBlockLocations(status, 0, length);
+
+        long start = System.currentTimeMillis();
+        AtomicLong downloaded = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        boolean succeeded = false;
+        int ranges = 0;
+        try (FileChannel channel = FileChannel.open(dst, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Future<?>> futures = new ArrayList<>(blocks.length);
+            for (BlockLocation block : blocks) {
+                // 最后一个block可能超出文件长度(如文件正在被追加), 以getLen()为准
+                long blockEnd = Math.min(block.getOffset() + block.getLength(), length);
+                long offset = block.getOffset();
+                while (offset < blockEnd) {
+                    long rangeOffset = offset;
+                    long rangeLength = Math.min(maxRangeSize, blockEnd - offset);
+                    futures.add(executor.submit(() -> {
+                        copyRange(src, rangeOffset, rangeLength, channel, downloaded);
+                        return null;
+                    }));
+                    offset += rangeLength;
+                }
+            }
+            executor.shutdown();
+
+            ranges = futures.size();
+            waitFor(futures, src, length, downloaded, start);
+            succeeded = true;
+        } finally {
+            executor.shutdownNow();
+            if (!succeeded) {
+                Files.deleteIfExists(dst);
+            }
+        }
+
+        Result result = new Result(downloaded.get(), ranges, System.currentTimeMillis() - start);
+        logger.info("downloaded {} to {}: {}", src, dst, result);
+        return result;
+    }
+
+    /**
+     * 定位读取[offset, offset + length)并写到本地文件的相同偏移量
+     */
+    private void copyRange(Path src, long offset, long length, FileChannel channel, AtomicLong downloaded)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(bufferSize, length));
+        try (FSDataInputStream in = fileSystem.open(src, bufferSize)) {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                int toRead = (int) Math.min(buffer.capacity(), end - position);
+                int read = in.read(position, buffer.array(), 0, toRead);
+                if (read < 0) {
+                    throw new EOFException("unexpected end of " + src + " at " + position);
+                }
+
+                buffer.clear();
+                buffer.limit(read);
+                long writePosition = position;
+                while (buffer.hasRemaining()) {
+                    writePosition += channel.write(buffer, writePosition);
+                }
+                position += read;
+                downloaded.addAndGet(read);
+            }
+        }
+    }
+
+    /**
+     * 等待所有范围下载完成, 期间定期打印进度
+     */
+    private void waitFor(List<Future<?>> futures, Path src, long length, AtomicLong downloaded, long start)
+            throws IOException {
+        long lastReport = start;
+        long lastBytes = 0L;
+        try {
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get(reportIntervalMs, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        long now = System.currentTimeMillis();
+                        long bytes = downloaded.get();
+                        double seconds = Math.max(1L, now - lastReport) / 1000.0;
+                        logger.info("downloaded {}/{} MB of {}, {} MB/s", String.format("%.1f", bytes / 1048576.0),
+                                String.format("%.1f", length / 1048576.0), src,
+                                String.format("%.1f", (bytes - lastBytes) / 1048576.0 / seconds));
+                        lastReport = now;
+                        lastBytes = bytes;
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("failed to download " + src, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while downloading " + src, e);
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package com.jsonyao.hdfs;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CompositeCrcFileChecksum;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.client.HdfsDataOutputStream;
+import org.apache.hadoop.util.CrcUtil;
+import org.apache.hadoop.util.PureJavaCrc32;
+import org.apache.hadoop.util.PureJavaCrc32C;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.Checksum;
+
+/**
+ * HDFS与本地目录之间的增量同步：只传输两边不一致的文件, 中断的大文件从已写入的位置继续
+ * <p>
+ * 1、判定：对方不存在或大小不同 => 传输; 大小相同且修改时间相同 => 跳过; 否则比较校验和, 相同则只同步修改时间, 不同才传输
+ * 2、校验和：HDFS端为getFileChecksum(..)返回的COMPOSITE-CRC(需要客户端配置dfs.checksum.combine.mode=COMPOSITE_CRC),
+ * 它与block大小、chunk大小无关, 等于整个文件字节流的CRC32C(或CRC32), 本地直接对文件计算同一种CRC即可比较;
+ * 拿不到可比较的校验和时(如默认的MD5MD5CRC), 保守地传输
+ * 3、续传：先写到同目录下的.<文件名>._COPYING_, 每传完hdfs.sync.chunk.size字节hsync()/force(..)一次; 旁边的.sync文件记录源文件的大小、修改时间,
+ * 源文件没变时, 下次从临时文件已有的长度继续(append/追加写; 下载时退回到最后一个完整chunk的末尾, 之后的字节在崩溃后可能未持久化), 否则重新传输;
+ * 传输完成后改名, 并把目标的修改时间设为与源文件一致。
+ * HDFS上正在写的文件, NameNode记录的长度只到最后一个完整的block, 所以hsync时带UPDATE_LENGTH;
+ * 上次中断的写入还持有租约, append前先recoverLease(..)(最多等hdfs.sync.lease.recovery.timeout.ms), 续传位置取append流的getPos()
+ * 4、列表：远端一次listFiles(..)批量列出, 不为每个文件单独请求NameNode
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class HdfsSync {
+
+    private static final Logger logger = LoggerFactory.getLogger(HdfsSync.class);
+
+    public static final String CHUNK_SIZE = "hdfs.sync.chunk.size";
+    public static final String CHECKSUM = "hdfs.sync.checksum";
+    public static final String BUFFER_SIZE = "hdfs.sync.buffer.size";
+    public static final String LEASE_RECOVERY_TIMEOUT_MS = "hdfs.sync.lease.recovery.timeout.ms";
+
+    // HDFS客户端配置：getFileChecksum(..)返回COMPOSITE-CRC
+    public static final String CHECKSUM_COMBINE_MODE = "dfs.checksum.combine.mode";
+
+    public static final long DEFAULT_CHUNK_SIZE = 64L * 1024 * 1024;
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    static final String COPYING_SUFFIX = "._COPYING_";
+    static final String SYNC_SUFFIX = ".sync";
+
+    private final FileSystem fileSystem;
+    private final long chunkSize;
+    private final boolean checksum;
+    private final int bufferSize;
+    private final long leaseRecoveryTimeoutMs;
+
+    /**
+     * 同步结果统计
+     */
+    public static class Result {
+
+        private long copied;
+        private long resumed;
+        private long unchanged;
+        private long sameChecksum;
+        private long bytes;
+        private long millis;
+
+        public long getCopied() {
+            return copied;
+        }
+
+        public long getResumed() {
+            return resumed;
+        }
+
+        public long getUnchanged() {
+            return unchanged;
+        }
+
+        public long getSameChecksum() {
+            return sameChecksum;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d copied (%d resumed), %d unchanged, %d same checksum, %.1f MB in %d ms",
+                    copied, resumed, unchanged, sameChecksum, bytes / 1048576.0, millis);
+        }
+    }
+
+    /**
+     * 判定结果
+     */
+    private enum Decision {
+        COPY, UNCHANGED, SAME_CHECKSUM
+    }
+
+    /**
+     * 按conf中的hdfs.sync.*配置创建同步器; 比较校验和时, fileSystem须由dfs.checksum.combine.mode=COMPOSITE_CRC的配置创建
+     *
+     * @param fileSystem
+     * @param conf
+     */
+    public HdfsSync(FileSystem fileSystem, Configuration conf) {
+        this.fileSystem = fileSystem;
+        this.chunkSize = Math.max(1L, conf.getLong(CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+        this.checksum = conf.getBoolean(CHECKSUM, true);
+        this.bufferSize = (int) Math.min(chunkSize, Math.max(4096, conf.getInt(BUFFER_SIZE, DEFAULT_BUFFER_SIZE)));
+        this.leaseRecoveryTimeoutMs = conf.getLong(LEASE_RECOVERY_TIMEOUT_MS, 60000L);
+        if (checksum && !"COMPOSITE_CRC".equals(fileSystem.getConf().get(CHECKSUM_COMBINE_MODE))) {
+            logger.warn("{} is not COMPOSITE_CRC, checksums will not be comparable and changed-mtime files will be copied",
+                    CHECKSUM_COMBINE_MODE);
+        }
+    }
+
+    /**
+     * 把本地目录src同步到HDFS目录dst(对应HdfsOp.put)
+     *
+     * @param src
+     * @param dst
+     * @return
+     * @throws IOException
+     */
+    public Result push(java.nio.file.Path src, Path dst) throws IOException {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        Map<String, FileStatus> remote = listRemote(dst);
+
+        try (Stream<java.nio.file.Path> stream = Files.walk(src)) {
+            for (java.nio.file.Path file : (Iterable<java.nio.file.Path>) stream::iterator) {
+                if (!Files.isRegularFile(file) || isTemporary(file.getFileName().toString())) {
+                    continue;
+                }
+                String relative = src.relativize(file).toString().replace(java.io.File.separatorChar, '/');
+                Path target = new Path(dst, relative);
+                long size = Files.size(file);
+                long mtime = Files.getLastModifiedTime(file).toMillis();
+
+                Decision decision = decide(file, size, mtime, remote.get(relative), target);
+                if (decision == Decision.COPY) {
+                    upload(file, size, mtime, target, result);
+                } else {
+                    record(decision, result);
+                    if (decision == Decision.SAME_CHECKSUM) {
+                        fileSystem.setTimes(target, mtime, -1);
+                    }
+                }
+            }
+        }
+
+        result.millis = System.currentTimeMillis() - start;
+        logger.info("pushed {} to {}: {}", src, dst, result);
+        return result;
+    }
+
+    /**
+     * 把HDFS目录src同步到本地目录dst(对应HdfsOp.get)
+     *
+     * @param src
+     * @param dst
+     * @return
+     * @throws IOException
+     */
+    public Result pull(Path src, java.nio.file.Path dst) throws IOException {
+        long start = System.currentTimeMillis();
+        Result result = new Result();
+        String root = fileSystem.getFileStatus(src).getPath().toUri().getPath();
+
+        RemoteIterator<LocatedFileStatus> iterator = fileSystem.listFiles(src, true);
+        while (iterator.hasNext()) {
+            LocatedFileStatus status = iterator.next();
+            if (isTemporary(status.getPath().getName())) {
+                continue;
+            }
+            String relative = relative(root, status.getPath());
+            java.nio.file.Path target = dst.resolve(relative);
+
+            Decision decision;
+            if (!Files.isRegularFile(target)) {
+                decision = Decision.COPY;
+            } else {
+                decision = decide(target, Files.size(target), Files.getLastModifiedTime(target).toMillis(),
+                        status, status.getPath());
+            }
+            if (decision == Decision.COPY) {
+                download(status, target, result);
+            } else {
+                record(decision, result);
+                if (decision == Decision.SAME_CHECKSUM) {
+                    Files.setLastModifiedTime(target, FileTime.fromMillis(status.getModificationTime()));
+                }
+            }
+        }
+
+        result.millis = System.currentTimeMillis() - start;
+        logger.info("pulled {} to {}: {}", src, dst, result);
+        return result;
+    }
+
+    /**
+     * 比较本地文件与远端文件
+     *
+     * @param local     本地文件
+     * @param size      本地文件大小
+     * @param mtime     本地文件修改时间
+     * @param remote    远端文件状态, 不存在时为null
+     * @param remotePath 远端文件路径
+     */
+    private Decision decide(java.nio.file.Path local, long size, long mtime, FileStatus remote, Path remotePath)
+            throws IOException {
+        if (remote == null || remote.isDirectory() || remote.getLen() != size) {
+            return Decision.COPY;
+        }
+        if (remote.getModificationTime() == mtime) {
+            return Decision.UNCHANGED;
+        }
+        if (!checksum) {
+            return Decision.COPY;
+        }
+
+        FileChecksum remoteChecksum = fileSystem.getFileChecksum(remotePath);
+        if (!(remoteChecksum instanceof CompositeCrcFileChecksum)) {
+            logger.debug("no composite crc for {}, copying", remotePath);
+            return Decision.COPY;
+        }
+        Checksum crc;
+        String algorithm = remoteChecksum.getAlgorithmName();
+        if ("COMPOSITE-CRC32C".equals(algorithm)) {
+            crc = new PureJavaCrc32C();
+        } else if ("COMPOSITE-CRC32".equals(algorithm)) {
+            crc = new PureJavaCrc32();
+        } else {
+            return Decision.COPY;
+        }
+
+        byte[] localBytes = CrcUtil.intToBytes((int) localCrc(local, crc));
+        return Arrays.equals(localBytes, remoteChecksum.getBytes()) ? Decision.SAME_CHECKSUM : Decision.COPY;
+    }
+
+    /**
+     * 计算本地文件整个字节流的CRC
+     */
+    private long localCrc(java.nio.file.Path file, Checksum crc) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (true) {
+                buffer.clear();
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                crc.update(buffer.array(), 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 上传到临时文件, 源文件没变时从临时文件已有的长度续传, 完成后改名
+     */
+    private void upload(java.nio.file.Path file, long size, long mtime, Path target, Result result) throws IOException {
+        Path tmp = new Path(target.getParent(), "." + target.getName() + COPYING_SUFFIX);
+        Path marker = tmp.suffix(SYNC_SUFFIX);
+
+        // 续传：源文件的大小、修改时间与上次记录的一致
+        long offset = 0L;
+        FSDataOutputStream out = null;
+        if (fileSystem.exists(tmp) && fileSystem.exists(marker) && sameSource(marker, size, mtime)) {
+            out = append(tmp);
+            offset = out.getPos();
+            if (offset > size) {
+                out.close();
+                out = null;
+                offset = 0L;
+            }
+        }
+        if (out == null) {
+            fileSystem.mkdirs(target.getParent());
+            try (FSDataOutputStream markerOut = fileSystem.create(marker, true)) {
+                markerOut.writeLong(size);
+                markerOut.writeLong(mtime);
+            }
+            out = fileSystem.create(tmp, true);
+        } else {
+            result.resumed++;
+            logger.info("resuming {} at {}/{} bytes", target, offset, size);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        try (FSDataOutputStream stream = out;
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long position = offset;
+            long unsynced = 0L;
+            while (position < size) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), size - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("file truncated while uploading: " + file);
+                }
+                stream.write(buffer.array(), 0, read);
+                position += read;
+                unsynced += read;
+                result.bytes += read;
+
+                // 每个chunk持久化一次, 中断后最多重传一个chunk
+                if (unsynced >= chunkSize) {
+                    hsync(stream);
+                    unsynced = 0L;
+                }
+            }
+        }
+
+        fileSystem.delete(target, false);
+        if (!fileSystem.rename(tmp, target)) {
+            throw new IOException("failed to rename " + tmp + " to " + target);
+        }
+        fileSystem.setTimes(target, mtime, -1);
+        fileSystem.delete(marker, false);
+        result.copied++;
+    }
+
+    /**
+     * 打开临时文件续写; HDFS上先回收上次中断的写入留下的租约, 否则append会因租约仍被持有而失败
+     * <p>
+     * 返回的流的getPos()为续写的起点：HDFS上是回收租约后最后一个block的实际长度, 而getFileStatus(..).getLen()
+     * 在文件未关闭时不包括最后一个block中已hsync的数据; 其它文件系统的append流不带起始位置, 取文件长度
+     */
+    private FSDataOutputStream append(Path tmp) throws IOException {
+        if (!(fileSystem instanceof DistributedFileSystem)) {
+            long length = fileSystem.getFileStatus(tmp).getLen();
+            FSDataOutputStream out = fileSystem.append(tmp);
+            return new FSDataOutputStream(out, null, length);
+        }
+
+        DistributedFileSystem dfs = (DistributedFileSystem) fileSystem;
+        long deadline = System.currentTimeMillis() + leaseRecoveryTimeoutMs;
+        boolean recovered = dfs.recoverLease(tmp);
+        while (!recovered && !dfs.isFileClosed(tmp)) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new IOException("timed out recovering lease of " + tmp + " after " + leaseRecoveryTimeoutMs + " ms");
+            }
+            try {
+                Thread.sleep(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while recovering lease of " + tmp, e);
+            }
+            recovered = dfs.recoverLease(tmp);
+        }
+        return dfs.append(tmp);
+    }
+
+    /**
+     * hsync并更新NameNode上的文件长度, 续传时才能看到最后一个block中已持久化的数据
+     */
+    private static void hsync(FSDataOutputStream out) throws IOException {
+        if (out instanceof HdfsDataOutputStream) {
+            ((HdfsDataOutputStream) out).hsync(EnumSet.of(HdfsDataOutputStream.SyncFlag.UPDATE_LENGTH));
+        } else {
+            out.hsync();
+        }
+    }
+
+    /**
+     * 下载到本地临时文件, 远端文件没变时从临时文件已有的长度续传, 完成后改名
+     */
+    private void download(FileStatus status, java.nio.file.Path target, Result result) throws IOException {
+        long size = status.getLen();
+        long mtime = status.getModificationTime();
+        java.nio.file.Path tmp = target.resolveSibling("." + target.getFileName() + COPYING_SUFFIX);
+        java.nio.file.Path marker = tmp.resolveSibling(tmp.getFileName() + SYNC_SUFFIX);
+
+        // 只有force(..)过的chunk是持久的, 崩溃后最后一个chunk可能是零或垃圾; 从最后一个完整chunk的末尾续传,
+        // 长度恰好在chunk边界上时, 这个chunk的force(..)不一定完成, 也重传
+        long offset = 0L;
+        if (Files.exists(tmp) && Files.exists(marker) && sameSource(marker, size, mtime)) {
+            long length = Math.min(Files.size(tmp), size);
+            offset = length > 0L ? (length - 1) / chunkSize * chunkSize : 0L;
+        }
+        if (offset == 0L) {
+            Files.createDirectories(target.getParent());
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(marker))) {
+                out.writeLong(size);
+                out.writeLong(mtime);
+            }
+        } else {
+            result.resumed++;
+            logger.info("resuming {} at {}/{} bytes", target, offset, size);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        try (FSDataInputStream in = fileSystem.open(status.getPath(), bufferSize);
+             FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // 临时文件offset之前的字节已经持久化, 与源文件相同偏移量的字节一致, 丢掉之后的部分继续写
+            channel.truncate(offset);
+            in.seek(offset);
+            long position = offset;
+            while (position < size) {
+                // 每次读取不跨越chunk边界, 保证每个chunk写完后立即force(..)
+                long toRead = Math.min(size - position, chunkSize - position % chunkSize);
+                int read = in.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), toRead));
+                if (read < 0) {
+                    throw new IOException("unexpected end of " + status.getPath() + " at " + position);
+                }
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                result.bytes += read;
+
+                if (position % chunkSize == 0L) {
+                    channel.force(false);
+                }
+            }
+        }
+
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(target, FileTime.fromMillis(mtime));
+        Files.deleteIfExists(marker);
+        result.copied++;
+    }
+
+    private boolean sameSource(Path marker, long size, long mtime) throws IOException {
+        try (FSDataInputStream in = fileSystem.open(marker)) {
+            return in.readLong() == size && in.readLong() == mtime;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static boolean sameSource(java.nio.file.Path marker, long size, long mtime) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(marker))) {
+            return in.readLong() == size && in.readLong() == mtime;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 批量列出远端目录下的所有文件, 相对路径 => 文件状态
+     */
+    private Map<String, FileStatus> listRemote(Path dir) throws IOException {
+        Map<String, FileStatus> files = new HashMap<>();
+        if (!fileSystem.exists(dir)) {
+            return files;
+        }
+        String root = fileSystem.getFileStatus(dir).getPath().toUri().getPath();
+        RemoteIterator<LocatedFileStatus> iterator = fileSystem.listFiles(dir, true);
+        while (iterator.hasNext()) {
+            LocatedFileStatus status = iterator.next();
+            files.put(relative(root, status.getPath()), status);
+        }
+        return files;
+    }
+
+    private static String relative(String root, Path path) {
+        String child = path.toUri().getPath();
+        String prefix = root.endsWith("/") ? root : root + "/";
+        return child.startsWith(prefix) ? child.substring(prefix.length()) : path.getName();
+    }
+
+    private static boolean isTemporary(String name) {
+        return name.endsWith(COPYING_SUFFIX) || name.endsWith(COPYING_SUFFIX + SYNC_SUFFIX);
+    }
+
+    private static void record(Decision decision, Result result) {
+        if (decision == Decision.UNCHANGED) {
+            result.unchanged++;
+        } else {
+            result.sameChecksum++;
+        }
+    }
+}
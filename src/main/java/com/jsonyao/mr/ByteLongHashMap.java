@@ -0,0 +1,203 @@
+package com.jsonyao.mr;
+
+import java.util.Arrays;
+
+/**
+ * 有界的开放寻址哈希表：byte[]单词 => long计数
+ * <p>
+ * 1、所有key的字节都拷贝到同一个arena字节数组中, 不为每个key创建对象
+ * 2、条目数、arena字节数都有上限, 达到上限时add(..)返回false, 由调用方先flush再重试
+ * 3、按插入顺序编号条目, 调用方可通过下标[0, size)遍历, 遍历过程不产生任何对象
+ *
+ * @author yaocs2
+ * @since 2022-08-21
+ */
+public class ByteLongHashMap {
+
+    /**
+     * 装载因子：表容量 = maxEntries / LOAD_FACTOR 向上取2的幂
+     */
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private final int maxEntries;
+    private final int maxBytes;
+    private final int mask;
+
+    // 槽位 => 条目下标+1, 0表示空槽
+    private final int[] slots;
+
+    // 条目数据
+    private final int[] hashes;
+    private final int[] keyOffsets;
+    private final int[] keyLengths;
+    private final long[] values;
+
+    // key字节arena, 按需倍增, 但不超过maxBytes
+    private byte[] arena;
+    private int arenaUsed;
+    private int size;
+
+    public ByteLongHashMap(int maxEntries, int maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxEntries and maxBytes must be positive");
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(2, (int) Math.min(1 << 30, (long) (maxEntries / LOAD_FACTOR))) - 1) << 1;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.mask = capacity - 1;
+        this.slots = new int[capacity];
+        this.hashes = new int[maxEntries];
+        this.keyOffsets = new int[maxEntries];
+        this.keyLengths = new int[maxEntries];
+        this.values = new long[maxEntries];
+        this.arena = new byte[Math.min(maxBytes, 64 * 1024)];
+    }
+
+    /**
+     * 累加key的计数
+     *
+     * @param bytes
+     * @param start
+     * @param length
+     * @param delta
+     * @return false表示key不存在且表已满(条目数或字节数达到上限), 需要先flush
+     */
+    public boolean add(byte[] bytes, int start, int length, long delta) {
+        int hash = hash(bytes, start, length);
+        int slot = hash & mask;
+        while (true) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                break;
+            }
+
+            // 命中已有key, 直接累加
+            entry--;
+            if (hashes[entry] == hash && equalsKey(entry, bytes, start, length)) {
+                values[entry] += delta;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        // 新key：检查上限
+        if (size >= maxEntries || !ensureArena(length)) {
+            return false;
+        }
+
+        System.arraycopy(bytes, start, arena, arenaUsed, length);
+        hashes[size] = hash;
+        keyOffsets[size] = arenaUsed;
+        keyLengths[size] = length;
+        values[size] = delta;
+        arenaUsed += length;
+        slots[slot] = ++size;
+        return true;
+    }
+
+    /**
+     * 查找key的计数
+     *
+     * @param bytes
+     * @param start
+     * @param length
+     * @param defaultValue key不存在时的返回值
+     * @return
+     */
+    public long get(byte[] bytes, int start, int length, long defaultValue) {
+        int hash = hash(bytes, start, length);
+        int slot = hash & mask;
+        while (true) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                return defaultValue;
+            }
+
+            entry--;
+            if (hashes[entry] == hash && equalsKey(entry, bytes, start, length)) {
+                return values[entry];
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * 清空所有条目, 保留已分配的数组以便复用
+     */
+    public void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+        arenaUsed = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int arenaUsed() {
+        return arenaUsed;
+    }
+
+    /**
+     * 遍历用：key所在的arena, 注意arena可能随add(..)扩容而被替换, 所以遍历期间不要add
+     *
+     * @return
+     */
+    public byte[] keyBytes() {
+        return arena;
+    }
+
+    public int keyOffset(int index) {
+        return keyOffsets[index];
+    }
+
+    public int keyLength(int index) {
+        return keyLengths[index];
+    }
+
+    public long value(int index) {
+        return values[index];
+    }
+
+    private boolean equalsKey(int entry, byte[] bytes, int start, int length) {
+        if (keyLengths[entry] != length) {
+            return false;
+        }
+        int offset = keyOffsets[entry];
+        for (int i = 0; i < length; i++) {
+            if (arena[offset + i] != bytes[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean ensureArena(int length) {
+        long required = (long) arenaUsed + length;
+        if (required > maxBytes) {
+            return false;
+        }
+        if (required > arena.length) {
+            int newLength = (int) Math.min(maxBytes, Math.max(required, (long) arena.length << 1));
+            arena = Arrays.copyOf(arena, newLength);
+        }
+        return true;
+    }
+
+    /**
+     * 31进制哈希 + murmur3 fmix32扰动, 避免短单词聚集在相邻槽位
+     */
+    private static int hash(byte[] bytes, int start, int length) {
+        int h = 1;
+        for (int i = start, end = start + length; i < end; i++) {
+            h = 31 * h + bytes[i];
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
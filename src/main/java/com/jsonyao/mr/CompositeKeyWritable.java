@@ -0,0 +1,228 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 通用的N列定长组合key：每列一个long, 每列可单独指定升序/降序, 用于多列二次排序, 不必每次都手写一个Writable
+ * <p>
+ * 序列化格式：
+ * 1、1字节：列数N(1 ~ 64)
+ * 2、ceil(N/8)字节：降序位图, 第i列降序则第i位为1
+ * 3、N * 8字节：每列的保序编码, 先翻转符号位(使有符号long可按无符号字节比较), 降序列再按位取反
+ * <p>
+ * 这样同一个Job中的key(列数、方向都相同)只需要按无符号字节逐个比较, RawComparator不用关心每列的方向
+ * <p>
+ * 例：第一列升序、第二列降序
+ * <pre>
+ *     CompositeKeyWritable k2 = new CompositeKeyWritable(Order.ASC, Order.DESC);
+ *     k2.set(0, 3).set(1, 1);
+ * </pre>
+ *
+ * @author yaocs2
+ * @since 2022-08-21
+ */
+public class CompositeKeyWritable implements WritableComparable<CompositeKeyWritable> {
+
+    public static final int MAX_COLUMNS = 64;
+
+    static {
+        // 注册RawComparator：排序、归并时直接比较序列化后的字节
+        WritableComparator.define(CompositeKeyWritable.class, new Comparator());
+    }
+
+    /**
+     * 列的排序方向
+     */
+    public enum Order {
+        ASC, DESC
+    }
+
+    private int size;
+    private long descMask;
+    private long[] values;
+
+    /**
+     * 供反序列化使用
+     */
+    public CompositeKeyWritable() {
+        this.values = new long[0];
+    }
+
+    /**
+     * @param orders 每列的排序方向, 列数即orders.length
+     */
+    public CompositeKeyWritable(Order... orders) {
+        if (orders.length == 0 || orders.length > MAX_COLUMNS) {
+            throw new IllegalArgumentException("columns must be in [1, " + MAX_COLUMNS + "]: " + orders.length);
+        }
+
+        this.size = orders.length;
+        this.values = new long[size];
+        for (int i = 0; i < size; i++) {
+            if (orders[i] == Order.DESC) {
+                descMask |= 1L << i;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Order order(int column) {
+        return (descMask & (1L << column)) != 0 ? Order.DESC : Order.ASC;
+    }
+
+    public long get(int column) {
+        checkColumn(column);
+        return values[column];
+    }
+
+    public CompositeKeyWritable set(int column, long value) {
+        checkColumn(column);
+        values[column] = value;
+        return this;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(size);
+        for (int i = 0, maskBytes = maskBytes(size); i < maskBytes; i++) {
+            out.writeByte((int) (descMask >>> (i * 8)));
+        }
+        for (int i = 0; i < size; i++) {
+            out.writeLong(encode(values[i], (descMask & (1L << i)) != 0));
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int newSize = in.readUnsignedByte();
+        if (newSize > MAX_COLUMNS) {
+            throw new IOException("corrupt CompositeKeyWritable, columns = " + newSize);
+        }
+        if (values.length < newSize) {
+            values = new long[newSize];
+        }
+        this.size = newSize;
+
+        long mask = 0;
+        for (int i = 0, maskBytes = maskBytes(size); i < maskBytes; i++) {
+            mask |= (long) in.readUnsignedByte() << (i * 8);
+        }
+        this.descMask = mask;
+
+        for (int i = 0; i < size; i++) {
+            values[i] = encode(in.readLong(), (descMask & (1L << i)) != 0);
+        }
+    }
+
+    /**
+     * 与序列化后按无符号字节比较的结果保持一致：先比较列数、降序位图, 再逐列比较
+     *
+     * @param o
+     * @return
+     */
+    @Override
+    public int compareTo(CompositeKeyWritable o) {
+        if (size != o.size) {
+            return Integer.compare(size, o.size);
+        }
+        if (descMask != o.descMask) {
+            for (int i = 0, maskBytes = maskBytes(size); i < maskBytes; i++) {
+                int c = Integer.compare((int) (descMask >>> (i * 8)) & 0xff, (int) (o.descMask >>> (i * 8)) & 0xff);
+                if (c != 0) {
+                    return c;
+                }
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (values[i] != o.values[i]) {
+                int c = Long.compare(values[i], o.values[i]);
+                return (descMask & (1L << i)) != 0 ? -c : c;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CompositeKeyWritable that = (CompositeKeyWritable) o;
+        if (size != that.size || descMask != that.descMask) return false;
+        for (int i = 0; i < size; i++) {
+            if (values[i] != that.values[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * 只对有效的前size列计算hashCode, 保证与equals一致(HashPartitioner分区也依赖它)
+     *
+     * @return
+     */
+    @Override
+    public int hashCode() {
+        int result = 31 * size + Long.hashCode(descMask);
+        for (int i = 0; i < size; i++) {
+            result = 31 * result + Long.hashCode(values[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("CompositeKeyWritable{");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(values[i]).append(order(i) == Order.DESC ? " desc" : " asc");
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * 保序编码：翻转符号位后, 有符号long的大小关系等价于无符号字节的大小关系; 降序列再按位取反
+     * <p>
+     * 该变换是自逆的, 解码也调用本方法
+     */
+    private static long encode(long value, boolean desc) {
+        long encoded = value ^ Long.MIN_VALUE;
+        return desc ? ~encoded : encoded;
+    }
+
+    private static int maskBytes(int size) {
+        return (size + 7) >>> 3;
+    }
+
+    private void checkColumn(int column) {
+        if (column < 0 || column >= size) {
+            throw new IndexOutOfBoundsException("column " + column + " out of [0, " + size + ")");
+        }
+    }
+
+    /**
+     * CompositeKeyWritable的RawComparator：序列化格式是保序的, 直接按无符号字节比较即可
+     *
+     * @author yaocs2
+     * @since 2022-08-21
+     */
+    public static class Comparator extends WritableComparator {
+
+        public Comparator() {
+            super(CompositeKeyWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareBytes(b1, s1, l1, b2, s2, l2);
+        }
+    }
+}
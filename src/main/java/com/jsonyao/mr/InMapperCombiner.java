@@ -0,0 +1,194 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Map端聚合(In-Mapper Combining)：在Map任务内存中先对单词计数做部分累加, 再输出到Context
+ * <p>
+ * 1、使用有界的ByteLongHashMap保存<单词, 部分计数>, 条目数或字节数达到阈值时flush一次
+ * 2、cleanup(..)时必须再flush一次, 保证剩余的部分计数都被输出
+ * 3、通过Hadoop计数器上报flush次数、输入单词数、输出记录数, 用于观察节省了多少shuffle数据量
+ * <p>
+ * 通过 -Dwordcount.inmapper.enabled=true 开启, 默认关闭
+ *
+ * @author yaocs2
+ * @since 2022-08-21
+ */
+public class InMapperCombiner {
+
+    private static final Logger logger = LoggerFactory.getLogger(InMapperCombiner.class);
+
+    public static final String ENABLED = "wordcount.inmapper.enabled";
+    public static final String MAX_ENTRIES = "wordcount.inmapper.max.entries";
+    public static final String MAX_BYTES = "wordcount.inmapper.max.bytes";
+
+    public static final int DEFAULT_MAX_ENTRIES = 64 * 1024;
+    public static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Map端聚合计数器
+     */
+    public enum Counter {
+        // flush次数
+        FLUSHES,
+        // 聚合前的单词数
+        TOKENS_IN,
+        // 聚合后实际输出的记录数
+        RECORDS_OUT
+    }
+
+    private final ByteLongHashMap map;
+
+    // 输出时复用的k2、v2
+    private final Text k2 = new Text();
+    private final LongWritable v2 = new LongWritable();
+
+    // 尚未上报到计数器的增量
+    private long tokensIn;
+    private long recordsOut;
+    private long flushes;
+
+    public InMapperCombiner(Configuration conf) {
+        this.map = new ByteLongHashMap(
+                conf.getInt(MAX_ENTRIES, DEFAULT_MAX_ENTRIES),
+                conf.getInt(MAX_BYTES, DEFAULT_MAX_BYTES));
+    }
+
+    /**
+     * 是否开启了Map端聚合
+     *
+     * @param conf
+     * @return
+     */
+    public static boolean isEnabled(Configuration conf) {
+        return conf.getBoolean(ENABLED, false);
+    }
+
+    /**
+     * 开启时创建聚合器, 否则返回null, 由Mapper退回到逐条输出
+     *
+     * @param conf
+     * @return
+     */
+    public static InMapperCombiner create(Configuration conf) {
+        return isEnabled(conf) ? new InMapperCombiner(conf) : null;
+    }
+
+    /**
+     * 累加单词计数, 表满时先flush再写入
+     *
+     * @param bytes
+     * @param start
+     * @param length
+     * @param count
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void add(byte[] bytes, int start, int length, long count,
+                    TaskInputOutputContext<?, ?, Text, LongWritable> context) throws IOException, InterruptedException {
+        tokensIn++;
+        if (map.add(bytes, start, length, count)) {
+            return;
+        }
+
+        flush(context);
+        if (!map.add(bytes, start, length, count)) {
+            // 单个单词就超过了字节上限, 直接输出, 不参与聚合
+            k2.set(bytes, start, length);
+            v2.set(count);
+            context.write(k2, v2);
+            recordsOut++;
+        }
+    }
+
+    /**
+     * 累加单词计数
+     *
+     * @param word
+     * @param count
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void add(Text word, long count,
+                    TaskInputOutputContext<?, ?, Text, LongWritable> context) throws IOException, InterruptedException {
+        add(word.getBytes(), 0, word.getLength(), count, context);
+    }
+
+    /**
+     * 输出内存中所有的部分计数, 并清空
+     *
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void flush(TaskInputOutputContext<?, ?, Text, LongWritable> context) throws IOException, InterruptedException {
+        int size = map.size();
+        if (size > 0) {
+            byte[] keyBytes = map.keyBytes();
+            for (int i = 0; i < size; i++) {
+                k2.set(keyBytes, map.keyOffset(i), map.keyLength(i));
+                v2.set(map.value(i));
+                context.write(k2, v2);
+            }
+            recordsOut += size;
+            flushes++;
+            map.clear();
+        }
+        updateCounters(context);
+    }
+
+    /**
+     * cleanup(..)时调用：输出剩余的部分计数
+     *
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void close(TaskInputOutputContext<?, ?, Text, LongWritable> context) throws IOException, InterruptedException {
+        flush(context);
+        logger.info("in-mapper combining finished: flushes = {}, tokensIn = {}, recordsOut = {}",
+                context.getCounter(Counter.FLUSHES).getValue(),
+                context.getCounter(Counter.TOKENS_IN).getValue(),
+                context.getCounter(Counter.RECORDS_OUT).getValue());
+    }
+
+    /**
+     * Job完成后, 根据计数器输出聚合比例：RECORDS_OUT / TOKENS_IN, 越小说明节省的shuffle数据越多
+     *
+     * @param job
+     * @throws IOException
+     */
+    public static void report(Job job) throws IOException {
+        if (!isEnabled(job.getConfiguration())) {
+            return;
+        }
+
+        Counters counters = job.getCounters();
+        long flushes = counters.findCounter(Counter.FLUSHES).getValue();
+        long tokensIn = counters.findCounter(Counter.TOKENS_IN).getValue();
+        long recordsOut = counters.findCounter(Counter.RECORDS_OUT).getValue();
+        double ratio = tokensIn == 0 ? 1.0 : (double) recordsOut / tokensIn;
+        logger.info("in-mapper combining: flushes = {}, tokensIn = {}, recordsOut = {}, collapse ratio = {}",
+                flushes, tokensIn, recordsOut, String.format("%.4f", ratio));
+    }
+
+    private void updateCounters(TaskInputOutputContext<?, ?, Text, LongWritable> context) {
+        context.getCounter(Counter.TOKENS_IN).increment(tokensIn);
+        context.getCounter(Counter.RECORDS_OUT).increment(recordsOut);
+        context.getCounter(Counter.FLUSHES).increment(flushes);
+        tokensIn = 0;
+        recordsOut = 0;
+        flushes = 0;
+    }
+}
@@ -0,0 +1,141 @@
+package com.jsonyao.mr;
+
+import java.util.Arrays;
+
+/**
+ * 有界的long小顶堆：用于在内存中保留最大的capacity个数
+ * <p>
+ * 1、基于long[]实现, 不装箱, offer(..)不产生任何对象
+ * 2、未满时直接入堆; 已满时只有比堆顶大的数才替换堆顶, 因此堆中始终是目前为止最大的capacity个数(含重复值)
+ * 3、数组从较小的长度开始, 装满后按2倍扩容, 最多到capacity; capacity很大(如topN为百万级)而数据较少时不会预先占用capacity * 8字节
+ *
+ * @author yaocs2
+ * @since 2022-08-23
+ */
+public class LongMinHeap {
+
+    private static final int INITIAL_LENGTH = 1024;
+
+    private final int capacity;
+    private long[] heap;
+    private int size;
+
+    public LongMinHeap(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        this.heap = new long[Math.min(capacity, INITIAL_LENGTH)];
+    }
+
+    /**
+     * 尝试加入一个数
+     *
+     * @param value
+     * @return 是否进入了堆
+     */
+    public boolean offer(long value) {
+        if (size < capacity) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, (int) Math.min(capacity, (long) heap.length << 1));
+            }
+            heap[size] = value;
+            siftUp(size++);
+            return true;
+        }
+        if (size == 0 || value <= heap[0]) {
+            return false;
+        }
+
+        // 替换堆顶(当前最小值)
+        heap[0] = value;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * 堆顶, 即堆中最小的数
+     *
+     * @return
+     */
+    public long peek() {
+        if (size == 0) {
+            throw new IllegalStateException("heap is empty");
+        }
+        return heap[0];
+    }
+
+    /**
+     * 弹出堆顶
+     *
+     * @return
+     */
+    public long poll() {
+        long top = peek();
+        heap[0] = heap[--size];
+        if (size > 0) {
+            siftDown(0);
+        }
+        return top;
+    }
+
+    /**
+     * 按数组下标访问堆中的数, 顺序不保证有序
+     *
+     * @param index [0, size)
+     * @return
+     */
+    public long get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index " + index + " out of [0, " + size + ")");
+        }
+        return heap[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    private void siftUp(int index) {
+        long value = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = value;
+    }
+
+    private void siftDown(int index) {
+        long value = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = (index << 1) + 1;
+            int right = child + 1;
+            if (right < size && heap[right] < heap[child]) {
+                child = right;
+            }
+            if (value <= heap[child]) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+}
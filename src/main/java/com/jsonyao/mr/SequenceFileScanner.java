@@ -0,0 +1,217 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * SequenceFile并行扫描器：按字节范围切分文件, 在ForkJoin线程池中并行读取各个范围, 通过Aggregator聚合结果
+ * <p>
+ * 1、切分：与SequenceFileInputFormat的切片规则相同, 每个范围[start, end)各自打开一个Reader, reader.sync(start)跳到start之后的第一个sync点;
+ * 读取位置 >= end且刚经过sync点时结束, 这条记录属于下一个范围, 因此每条记录恰好被一个范围读取
+ * 2、BLOCK压缩时position按块前进, 块内记录都归属于块起点所在的范围, 规则同上
+ * 3、每个工作线程只创建一次key、value, 读取时复用, 不为每条记录创建对象
+ * 4、结果不收集记录：每个范围有自己的累加器, 范围之间两两合并, 调用方只拿到最终聚合结果
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class SequenceFileScanner {
+
+    private static final Logger logger = LoggerFactory.getLogger(SequenceFileScanner.class);
+
+    public static final String SPLIT_SIZE = "sequencefile.scan.split.size";
+    public static final String PARALLELISM = "sequencefile.scan.parallelism";
+
+    public static final long DEFAULT_SPLIT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * 记录的聚合方式
+     *
+     * @param <K> key类型, 即SequenceFile的key class
+     * @param <V> value类型, 即SequenceFile的value class
+     * @param <A> 累加器类型
+     */
+    public interface Aggregator<K extends Writable, V extends Writable, A> {
+
+        /**
+         * 为一个范围创建空的累加器
+         *
+         * @return
+         */
+        A create();
+
+        /**
+         * 处理一条记录, key、value会被复用, 需要保留时请自行拷贝
+         *
+         * @param accumulator
+         * @param key
+         * @param value
+         * @throws IOException
+         */
+        void visit(A accumulator, K key, V value) throws IOException;
+
+        /**
+         * 合并两个范围的累加器
+         *
+         * @param left
+         * @param right
+         * @return
+         */
+        A merge(A left, A right);
+    }
+
+    /**
+     * 逐条回调, 不需要累加器时使用; 回调会在多个线程中并发执行, 必须是线程安全的
+     *
+     * @param <K>
+     * @param <V>
+     */
+    public interface Visitor<K extends Writable, V extends Writable> {
+
+        void visit(K key, V value) throws IOException;
+    }
+
+    private final Configuration conf;
+    private final long splitSize;
+    private final int parallelism;
+
+    public SequenceFileScanner(Configuration conf) {
+        this.conf = conf;
+        this.splitSize = Math.max(4096L, conf.getLong(SPLIT_SIZE, DEFAULT_SPLIT_SIZE));
+        this.parallelism = Math.max(1, conf.getInt(PARALLELISM, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * 并行扫描file, 返回所有范围合并后的累加器
+     *
+     * @param file
+     * @param aggregator
+     * @return
+     * @throws IOException
+     */
+    public <K extends Writable, V extends Writable, A> A scan(Path file, Aggregator<K, V, A> aggregator) throws IOException {
+        long length = file.getFileSystem(conf).getFileStatus(file).getLen();
+        int splits = (int) Math.max(1L, (length + splitSize - 1) / splitSize);
+
+        long start = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            A result = pool.invoke(new RangeTask<>(file, length, 0, splits, aggregator));
+            logger.info("scanned {} ({} bytes, {} ranges) in {} ms", file, length, splits, System.currentTimeMillis() - start);
+            return result;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 并行扫描file, 逐条回调visitor
+     *
+     * @param file
+     * @param visitor 线程安全的回调
+     * @return 记录数
+     * @throws IOException
+     */
+    public <K extends Writable, V extends Writable> long forEach(Path file, Visitor<K, V> visitor) throws IOException {
+        return scan(file, new Aggregator<K, V, long[]>() {
+            @Override
+            public long[] create() {
+                return new long[1];
+            }
+
+            @Override
+            public void visit(long[] count, K key, V value) throws IOException {
+                visitor.visit(key, value);
+                count[0]++;
+            }
+
+            @Override
+            public long[] merge(long[] left, long[] right) {
+                left[0] += right[0];
+                return left;
+            }
+        })[0];
+    }
+
+    /**
+     * 扫描一个字节范围[start, end)
+     */
+    @SuppressWarnings("unchecked")
+    private <K extends Writable, V extends Writable, A> A scanRange(Path file, long start, long end,
+                                                                    Aggregator<K, V, A> aggregator) throws IOException {
+        A accumulator = aggregator.create();
+        try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(file))) {
+            K key = (K) ReflectionUtils.newInstance(reader.getKeyClass(), conf);
+            V value = (V) ReflectionUtils.newInstance(reader.getValueClass(), conf);
+
+            // 跳到start之后的第一个sync点, 第一个范围从文件头之后开始
+            if (start > reader.getPosition()) {
+                reader.sync(start);
+            }
+            while (true) {
+                long position = reader.getPosition();
+                if (!reader.next(key, value)) {
+                    break;
+                }
+                // 越过end后遇到的第一个sync点之后的记录属于下一个范围
+                if (position >= end && reader.syncSeen()) {
+                    break;
+                }
+                aggregator.visit(accumulator, key, value);
+            }
+        }
+        return accumulator;
+    }
+
+    /**
+     * 二分范围[from, to), 直到只剩一个范围时直接扫描
+     */
+    private class RangeTask<K extends Writable, V extends Writable, A> extends RecursiveTask<A> {
+
+        private final Path file;
+        private final long length;
+        private final int from;
+        private final int to;
+        private final Aggregator<K, V, A> aggregator;
+
+        RangeTask(Path file, long length, int from, int to, Aggregator<K, V, A> aggregator) {
+            this.file = file;
+            this.length = length;
+            this.from = from;
+            this.to = to;
+            this.aggregator = aggregator;
+        }
+
+        @Override
+        protected A compute() {
+            if (to - from == 1) {
+                long start = from * splitSize;
+                long end = Math.min(length, start + splitSize);
+                try {
+                    return scanRange(file, start, end, aggregator);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            int mid = (from + to) >>> 1;
+            RangeTask<K, V, A> left = new RangeTask<>(file, length, from, mid, aggregator);
+            RangeTask<K, V, A> right = new RangeTask<>(file, length, mid, to, aggregator);
+            left.fork();
+            A rightResult = right.compute();
+            return aggregator.merge(left.join(), rightResult);
+        }
+    }
+}
@@ -0,0 +1,627 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 增量小文件归档：归档目录下由一个清单文件和多个分段组成, 每次只打包新增或变化的文件, 代价为O(变化量)而不是O(总量)
+ * <p>
+ * 目录结构：
+ * 1、manifest：SequenceFile<文件名, ManifestEntry>, 记录每个已打包文件的大小、修改时间、MD5以及所在分段;
+ * 先写manifest.tmp再改名, 改名前的崩溃不会破坏旧清单
+ * 2、segment-NNNNN：SmallFilePacker打包的BLOCK压缩SequenceFile及其旁路索引.idx, 一次增量对应一个分段
+ * <p>
+ * 增量判定：大小和修改时间都没变时直接跳过, 不读文件; 否则计算MD5, 内容没变(如只是touch)时只更新修改时间, 内容变了才重新打包;
+ * 本地已删除的文件从清单中移除。旧分段中被覆盖或删除的记录成为垃圾, 由压缩清理
+ * <p>
+ * 压缩：分段数超过smallfile.archive.compact.segments时, 在后台线程中把所有分段里仍然有效的记录顺序拷贝到一个新分段,
+ * 不解压到本地、不重新读取原始文件; 先写新清单再删除旧分段。拷贝在锁外进行, 期间get(..)、update(..)照常执行;
+ * 提交时只在加锁后检查清单是否变化, 变化了(有文件新增、变化或删除)就放弃本次结果, 由之后的update(..)重新触发; 压缩期间不删除任何分段文件
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class SmallFileArchive implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmallFileArchive.class);
+
+    public static final String COMPACT_SEGMENTS = "smallfile.archive.compact.segments";
+
+    public static final int DEFAULT_COMPACT_SEGMENTS = 8;
+
+    public static final String MANIFEST = "manifest";
+    public static final String SEGMENT_PREFIX = "segment-";
+
+    /**
+     * 清单中的一个文件
+     */
+    public static class ManifestEntry implements Writable {
+
+        private long size;
+        private long mtime;
+        private final MD5Hash hash = new MD5Hash();
+        private int segment;
+
+        public ManifestEntry() {
+        }
+
+        ManifestEntry(long size, long mtime, MD5Hash hash, int segment) {
+            this.size = size;
+            this.mtime = mtime;
+            this.hash.set(hash);
+            this.segment = segment;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeLong(size);
+            out.writeLong(mtime);
+            hash.write(out);
+            out.writeInt(segment);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            size = in.readLong();
+            mtime = in.readLong();
+            hash.readFields(in);
+            segment = in.readInt();
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getMtime() {
+            return mtime;
+        }
+
+        public MD5Hash getHash() {
+            return hash;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+    }
+
+    /**
+     * 一次增量更新的统计
+     */
+    public static class UpdateResult {
+
+        private final int added;
+        private final int changed;
+        private final int touched;
+        private final int unchanged;
+        private final int removed;
+        private final long bytes;
+        private final long millis;
+
+        UpdateResult(int added, int changed, int touched, int unchanged, int removed, long bytes, long millis) {
+            this.added = added;
+            this.changed = changed;
+            this.touched = touched;
+            this.unchanged = unchanged;
+            this.removed = removed;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        public int getAdded() {
+            return added;
+        }
+
+        public int getChanged() {
+            return changed;
+        }
+
+        public int getTouched() {
+            return touched;
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        public int getRemoved() {
+            return removed;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d added, %d changed, %d touched, %d unchanged, %d removed, %.1f MB packed in %d ms",
+                    added, changed, touched, unchanged, removed, bytes / 1048576.0, millis);
+        }
+    }
+
+    private final Configuration conf;
+    private final Path dir;
+    private final FileSystem fs;
+    private final SmallFilePacker packer;
+    private final int compactSegments;
+
+    // 文件名 => 清单条目; 清单引用的分段
+    private final Map<String, ManifestEntry> manifest = new HashMap<>();
+    private final TreeSet<Integer> segments = new TreeSet<>();
+    private int nextSegment;
+
+    // 清单中文件 => 分段的映射每变化一次加1, 压缩提交时据此判断拷贝期间清单是否变化
+    private long manifestVersion;
+    private boolean compacting;
+
+    // 分段号 => get(..)复用的读取器和旁路索引, 分段删除时关闭
+    private final Map<Integer, SegmentReader> readers = new HashMap<>();
+
+    // 后台压缩
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "smallfile-archive-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> compaction;
+
+    /**
+     * 打开归档目录, 不存在时在第一次update(..)时创建; 打包参数同SmallFilePacker(smallfile.pack.*)
+     *
+     * @param conf
+     * @param dir
+     * @throws IOException
+     */
+    public SmallFileArchive(Configuration conf, Path dir) throws IOException {
+        this.conf = conf;
+        this.dir = dir;
+        this.fs = dir.getFileSystem(conf);
+        this.packer = new SmallFilePacker(conf);
+        this.compactSegments = Math.max(1, conf.getInt(COMPACT_SEGMENTS, DEFAULT_COMPACT_SEGMENTS));
+        load();
+    }
+
+    /**
+     * 把inputDir(不递归)增量同步到归档中：新增或变化的文件打包为一个新分段, 然后更新清单; 分段过多时触发后台压缩
+     *
+     * @param inputDir
+     * @return
+     * @throws IOException
+     */
+    public synchronized UpdateResult update(java.nio.file.Path inputDir) throws IOException {
+        long start = System.currentTimeMillis();
+        int segment = nextSegment;
+        int added = 0;
+        int changed = 0;
+        int touched = 0;
+        int unchanged = 0;
+
+        List<java.nio.file.Path> delta = new ArrayList<>();
+        Map<String, ManifestEntry> pending = new HashMap<>();
+        Map<String, Long> touchedMtimes = new HashMap<>();
+        Set<String> seen = new HashSet<>();
+        for (java.nio.file.Path file : SmallFilePacker.listFiles(inputDir)) {
+            String name = file.getFileName().toString();
+            seen.add(name);
+            long size = Files.size(file);
+            long mtime = Files.getLastModifiedTime(file).toMillis();
+
+            // 大小、修改时间都没变, 不读文件
+            ManifestEntry old = manifest.get(name);
+            if (old != null && old.size == size && old.mtime == mtime) {
+                unchanged++;
+                continue;
+            }
+
+            // 内容没变, 只更新修改时间
+            MD5Hash hash = digest(file);
+            if (old != null && old.size == size && old.hash.equals(hash)) {
+                touchedMtimes.put(name, mtime);
+                touched++;
+                continue;
+            }
+
+            if (old == null) {
+                added++;
+            } else {
+                changed++;
+            }
+            delta.add(file);
+            pending.put(name, new ManifestEntry(size, mtime, hash, segment));
+        }
+
+        // 本地已删除的文件
+        List<String> removedNames = new ArrayList<>();
+        for (String name : manifest.keySet()) {
+            if (!seen.contains(name)) {
+                removedNames.add(name);
+            }
+        }
+        int removed = removedNames.size();
+
+        // 先写分段, 再写清单, 清单只引用已经写完的分段; 分段写完之后才修改内存中的清单, 打包失败时与磁盘上的清单保持一致
+        long bytes = 0L;
+        if (!delta.isEmpty()) {
+            bytes = packer.pack(delta, segmentPath(segment)).getBytes();
+            nextSegment++;
+            segments.add(segment);
+        }
+        manifest.keySet().removeAll(removedNames);
+        for (Map.Entry<String, Long> touchedMtime : touchedMtimes.entrySet()) {
+            manifest.get(touchedMtime.getKey()).mtime = touchedMtime.getValue();
+        }
+        manifest.putAll(pending);
+        if (!delta.isEmpty() || removed > 0) {
+            manifestVersion++;
+        }
+        if (!delta.isEmpty() || touched > 0 || removed > 0) {
+            writeManifest();
+        }
+        retainReferencedSegments();
+
+        UpdateResult result = new UpdateResult(added, changed, touched, unchanged, removed, bytes,
+                System.currentTimeMillis() - start);
+        logger.info("updated {}: {}, {} segments", dir, result, segments.size());
+
+        if (segments.size() > compactSegments && (compaction == null || compaction.isDone())) {
+            compaction = compactor.submit(() -> {
+                compact();
+                return null;
+            });
+        }
+        return result;
+    }
+
+    /**
+     * 按文件名读取文件内容：通过清单找到分段, 有旁路索引时直接定位, 否则顺序扫描该分段; 每个分段的读取器、索引只打开一次
+     *
+     * @param name
+     * @param value
+     * @return 是否存在
+     * @throws IOException
+     */
+    public synchronized boolean get(Text name, BytesWritable value) throws IOException {
+        ManifestEntry entry = manifest.get(name.toString());
+        if (entry == null) {
+            return false;
+        }
+
+        SegmentReader segment = readers.get(entry.segment);
+        if (segment == null) {
+            segment = new SegmentReader(segmentPath(entry.segment));
+            readers.put(entry.segment, segment);
+        }
+        if (segment.index != null) {
+            return segment.index.get(segment.reader, name, value);
+        }
+
+        segment.reader.seek(segment.start);
+        while (segment.reader.next(segment.key)) {
+            if (segment.key.equals(name)) {
+                segment.reader.getCurrentValue(value);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 清单中的所有文件
+     *
+     * @return 文件名 => 清单条目的只读视图, 调用方不能在update(..)的同时遍历
+     */
+    public synchronized Map<String, ManifestEntry> getManifest() {
+        return Collections.unmodifiableMap(manifest);
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * 立即压缩所有分段为一个新分段; 已有压缩在进行时直接返回
+     * <p>
+     * 1、加锁：取清单快照(文件名 => 分段), 分配新分段号
+     * 2、不加锁：按快照把仍然有效的记录拷贝到新分段
+     * 3、加锁：清单没有变化时切换到新分段、写清单、删除旧分段; 否则删除新分段
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        int target;
+        List<Integer> old;
+        Map<String, Integer> live;
+        long version;
+        synchronized (this) {
+            if (segments.size() <= 1 || compacting) {
+                return;
+            }
+            compacting = true;
+            target = nextSegment++;
+            old = new ArrayList<>(segments);
+            live = new HashMap<>(manifest.size() * 4 / 3 + 1);
+            for (Map.Entry<String, ManifestEntry> entry : manifest.entrySet()) {
+                live.put(entry.getKey(), entry.getValue().segment);
+            }
+            version = manifestVersion;
+        }
+
+        boolean committed = false;
+        try {
+            long copied = 0L;
+            try (SmallFilePacker.IndexedWriter writer = packer.createIndexedWriter(segmentPath(target))) {
+                Text key = new Text();
+                BytesWritable value = new BytesWritable();
+                for (int segment : old) {
+                    try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(segmentPath(segment)))) {
+                        while (reader.next(key)) {
+                            // 只拷贝快照中仍指向这个分段的记录, 被覆盖、被删除的跳过, 跳过时不解压value
+                            Integer liveSegment = live.get(key.toString());
+                            if (liveSegment == null || liveSegment != segment) {
+                                continue;
+                            }
+                            reader.getCurrentValue(value);
+                            writer.append(key, value);
+                            copied++;
+                        }
+                    }
+                }
+                writer.finish();
+            }
+
+            synchronized (this) {
+                if (manifestVersion != version) {
+                    logger.info("manifest of {} changed during compaction, discarding {}", dir, segmentPath(target).getName());
+                    return;
+                }
+
+                // 先写新清单, 再删除旧分段
+                for (ManifestEntry entry : manifest.values()) {
+                    entry.segment = target;
+                }
+                segments.clear();
+                segments.add(target);
+                writeManifest();
+                manifestVersion++;
+                committed = true;
+                for (int segment : old) {
+                    deleteSegment(segment);
+                }
+            }
+            logger.info("compacted {} segments of {} into {} ({} live files) in {} ms", old.size(), dir,
+                    segmentPath(target).getName(), copied, System.currentTimeMillis() - start);
+        } finally {
+            synchronized (this) {
+                compacting = false;
+                if (!committed) {
+                    // 删除新分段, 以及压缩期间推迟删除的分段
+                    retainReferencedSegments();
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待后台压缩完成, 关闭get(..)打开的读取器
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        Future<?> pending;
+        synchronized (this) {
+            pending = compaction;
+        }
+        try {
+            if (pending != null) {
+                pending.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("compaction failed: " + dir, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for compaction: " + dir, e);
+        } finally {
+            compactor.shutdown();
+            synchronized (this) {
+                for (SegmentReader reader : readers.values()) {
+                    reader.close();
+                }
+                readers.clear();
+            }
+        }
+    }
+
+    /**
+     * 加载清单, 并删除清单没有引用的分段(上次写入或压缩中途失败留下的)
+     */
+    private void load() throws IOException {
+        Path manifestPath = new Path(dir, MANIFEST);
+        Path tmpPath = manifestPath.suffix(".tmp");
+        if (!fs.exists(manifestPath) && fs.exists(tmpPath)) {
+            // 上次删除旧清单之后、改名之前失败
+            fs.rename(tmpPath, manifestPath);
+        }
+
+        if (fs.exists(manifestPath)) {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(manifestPath))) {
+                Text key = new Text();
+                while (true) {
+                    ManifestEntry entry = new ManifestEntry();
+                    if (!reader.next(key, entry)) {
+                        break;
+                    }
+                    manifest.put(key.toString(), entry);
+                    segments.add(entry.segment);
+                }
+            }
+        }
+
+        int maxSegment = -1;
+        if (fs.exists(dir)) {
+            for (FileStatus status : fs.listStatus(dir)) {
+                int segment = parseSegment(status.getPath().getName());
+                maxSegment = Math.max(maxSegment, segment);
+            }
+        }
+        nextSegment = maxSegment + 1;
+        retainReferencedSegments();
+        logger.info("loaded {} files in {} segments from {}", manifest.size(), segments.size(), dir);
+    }
+
+    /**
+     * 先写manifest.tmp, 再替换manifest
+     */
+    private void writeManifest() throws IOException {
+        Path manifestPath = new Path(dir, MANIFEST);
+        Path tmpPath = manifestPath.suffix(".tmp");
+        try (SequenceFile.Writer writer = SequenceFile.createWriter(conf,
+                SequenceFile.Writer.file(tmpPath),
+                SequenceFile.Writer.keyClass(Text.class),
+                SequenceFile.Writer.valueClass(ManifestEntry.class))) {
+            Text key = new Text();
+            for (Map.Entry<String, ManifestEntry> entry : manifest.entrySet()) {
+                key.set(entry.getKey());
+                writer.append(key, entry.getValue());
+            }
+        }
+
+        // HDFS的rename不覆盖已存在的文件
+        fs.delete(manifestPath, false);
+        if (!fs.rename(tmpPath, manifestPath)) {
+            throw new IOException("failed to rename " + tmpPath + " to " + manifestPath);
+        }
+    }
+
+    /**
+     * 删除清单没有引用的分段
+     */
+    private void retainReferencedSegments() throws IOException {
+        Set<Integer> referenced = new HashSet<>();
+        for (ManifestEntry entry : manifest.values()) {
+            referenced.add(entry.segment);
+        }
+        if (!fs.exists(dir)) {
+            segments.clear();
+            return;
+        }
+        // 压缩期间旧分段还在被读取、新分段还没有被引用, 不删除文件, 留到下次清理
+        if (compacting) {
+            segments.retainAll(referenced);
+            return;
+        }
+        for (FileStatus status : fs.listStatus(dir)) {
+            int segment = parseSegment(status.getPath().getName());
+            if (segment >= 0 && !referenced.contains(segment)) {
+                deleteSegment(segment);
+            }
+        }
+        segments.retainAll(referenced);
+    }
+
+    private void deleteSegment(int segment) throws IOException {
+        SegmentReader reader = readers.remove(segment);
+        if (reader != null) {
+            reader.close();
+        }
+        Path segmentPath = segmentPath(segment);
+        fs.delete(segmentPath, false);
+        fs.delete(SmallFileSeqIndex.indexPath(segmentPath), false);
+    }
+
+    private Path segmentPath(int segment) {
+        return new Path(dir, String.format("%s%05d", SEGMENT_PREFIX, segment));
+    }
+
+    /**
+     * segment-NNNNN => NNNNN, 其他文件(包括.idx)返回-1
+     */
+    private static int parseSegment(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 一个分段的读取器, 以及它的旁路索引(没有索引时为null, 顺序扫描)
+     */
+    private class SegmentReader implements Closeable {
+
+        private final SequenceFile.Reader reader;
+        private final SmallFileSeqIndex index;
+        // 第一条记录的位置, 顺序扫描时从这里开始
+        private final long start;
+        private final Text key = new Text();
+
+        SegmentReader(Path segmentPath) throws IOException {
+            this.reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(segmentPath));
+            this.start = reader.getPosition();
+            Path indexPath = SmallFileSeqIndex.indexPath(segmentPath);
+            SmallFileSeqIndex index = null;
+            try {
+                if (fs.exists(indexPath)) {
+                    index = SmallFileSeqIndex.open(conf, indexPath);
+                }
+            } catch (IOException e) {
+                reader.close();
+                throw e;
+            }
+            this.index = index;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                reader.close();
+            } finally {
+                if (index != null) {
+                    index.close();
+                }
+            }
+        }
+    }
+
+    private static MD5Hash digest(java.nio.file.Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return MD5Hash.digest(in);
+        }
+    }
+}
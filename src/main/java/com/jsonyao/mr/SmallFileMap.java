@@ -1,15 +1,15 @@
 package com.jsonyao.mr;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.MapFile;
-import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 
 /**
  * 小文件解决方案之 MapFile
@@ -26,6 +26,12 @@ public class SmallFileMap {
 
         // 读取HDFS中合并后的inputFile文件
         read(hdfsFilePath);
+
+        // 按文件名随机读取
+        get(hdfsFilePath, "1.txt");
+
+        // 并行扫描整个文件, 统计文件数与总字节数
+        stat(hdfsFilePath);
     }
 
     /**
@@ -43,36 +49,8 @@ public class SmallFileMap {
         FileSystem fileSystem = FileSystem.get(conf);
         fileSystem.delete(new Path(outputDir), true);
 
-        /**
-         * 构造options数组：
-         *
-         * a. key的类型
-         * b. value的类型
-         */
-        SequenceFile.Writer.Option[] options = new SequenceFile.Writer.Option[]{
-                MapFile.Writer.keyClass(Text.class),
-                MapFile.Writer.valueClass(Text.class)
-        };
-
-        MapFile.Writer writer = new MapFile.Writer(conf, new Path(outputDir), options);
-
-        // 读取指定目录下的所有小文件
-        File inputDirPath = new File(inputDir);
-        if (inputDirPath.isDirectory()) {
-            File[] files = inputDirPath.listFiles();
-            for (File file : files) {
-                String fileName = file.getName();
-                String content = FileUtils.readFileToString(file, "UTF-8");
-
-                // 把合并后的文件写到HDFS中
-                Text key = new Text(fileName);
-                Text value = new Text(content);
-                writer.append(key, value);
-            }
-        }
-
-        // 关闭流
-        writer.close();
+        // 文件名外部排序后, 按顺序并行读取文件内容, 写入BloomMapFile
+        new SmallFileMapBuilder(conf).build(Paths.get(inputDir), new Path(outputDir));
     }
 
     /**
@@ -90,15 +68,69 @@ public class SmallFileMap {
 
         // 创建缓冲区
         Text key = new Text();
-        Text value = new Text();
+        BytesWritable value = new BytesWritable();
 
         // 开始读取
         while (reader.next(key, value)) {
             System.out.print(String.format("文件名: %s, ", key.toString()));
-            System.out.println(String.format("文件内容: %s", value.toString()));
+            System.out.println(String.format("文件内容: %s", new String(value.getBytes(), 0, value.getLength(), StandardCharsets.UTF_8)));
         }
 
         // 关闭流
         reader.close();
     }
-}
\ No newline at end of file
+
+    /**
+     * 按文件名随机读取HDFS中合并后的inputDir文件
+     *
+     * @param inputDir
+     * @param fileName
+     * @throws IOException
+     */
+    private static void get(String inputDir, String fileName) throws IOException {
+        Configuration conf = new Configuration();
+        conf.set("fs.defaultFS", "hdfs://bigdata01:9000");
+
+        try (SmallFileMapLookup lookup = new SmallFileMapLookup(conf, new Path(inputDir))) {
+            byte[] content = lookup.get(fileName);
+            System.out.print(String.format("文件名: %s, ", fileName));
+            System.out.println(String.format("文件内容: %s", content == null ? null : new String(content, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * 并行扫描HDFS中合并后的inputDir文件, 统计文件数、总字节数以及最大文件大小, 不收集记录
+     *
+     * @param inputDir
+     * @throws IOException
+     */
+    private static void stat(String inputDir) throws IOException {
+        Configuration conf = new Configuration();
+        conf.set("fs.defaultFS", "hdfs://bigdata01:9000");
+
+        // MapFile的数据文件就是按key排序的SequenceFile, 直接并行扫描data文件
+        long[] stat = new SequenceFileScanner(conf).scan(new Path(inputDir, MapFile.DATA_FILE_NAME),
+                new SequenceFileScanner.Aggregator<Text, BytesWritable, long[]>() {
+                    @Override
+                    public long[] create() {
+                        return new long[3];
+                    }
+
+                    @Override
+                    public void visit(long[] accumulator, Text key, BytesWritable value) {
+                        accumulator[0]++;
+                        accumulator[1] += value.getLength();
+                        accumulator[2] = Math.max(accumulator[2], value.getLength());
+                    }
+
+                    @Override
+                    public long[] merge(long[] left, long[] right) {
+                        left[0] += right[0];
+                        left[1] += right[1];
+                        left[2] = Math.max(left[2], right[2]);
+                        return left;
+                    }
+                });
+        System.out.println(String.format("文件数: %d, 总字节数: %d, 最大文件字节数: %d", stat[0], stat[1], stat[2]));
+    }
+}
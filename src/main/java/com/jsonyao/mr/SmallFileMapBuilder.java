@@ -0,0 +1,269 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BloomMapFile;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 小文件MapFile构建器：MapFile要求key严格递增, 所以先对文件名做外部排序, 再按顺序并行读取文件内容写入MapFile/BloomMapFile
+ * <p>
+ * 1、外部排序：流式遍历目录, 每攒满一批文件名就按UTF-8字节序(与Text的比较规则一致)排序后写入本地临时文件, 最后多路归并,
+ * 内存中最多只有一批文件名
+ * 2、并行读取：按归并后的顺序提交读取任务, 最多预读一个窗口, 写线程按提交顺序取结果, 既并行又保证key有序
+ * 3、写入：value为BytesWritable, 数据文件BLOCK压缩(编解码器同smallfile.pack.codec); 索引间隔可调,
+ * 间隔越小随机查找越快, 但index文件越大, 每个Reader加载索引的内存越多
+ * 4、BloomMapFile额外写入bloom文件, 查找不存在的文件名时可以不读数据文件, 见SmallFileMapLookup
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class SmallFileMapBuilder {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmallFileMapBuilder.class);
+
+    public static final String SORT_CHUNK_SIZE = "smallfile.map.sort.chunk.size";
+    public static final String INDEX_INTERVAL = "smallfile.map.index.interval";
+    public static final String BLOOM = "smallfile.map.bloom";
+    public static final String THREADS = "smallfile.map.threads";
+
+    public static final int DEFAULT_SORT_CHUNK_SIZE = 100_000;
+    public static final int DEFAULT_INDEX_INTERVAL = 128;
+
+    private final Configuration conf;
+    private final int chunkSize;
+    private final int indexInterval;
+    private final boolean bloom;
+    private final int threads;
+
+    public SmallFileMapBuilder(Configuration conf) {
+        this.conf = conf;
+        this.chunkSize = Math.max(1, conf.getInt(SORT_CHUNK_SIZE, DEFAULT_SORT_CHUNK_SIZE));
+        this.indexInterval = Math.max(1, conf.getInt(INDEX_INTERVAL, DEFAULT_INDEX_INTERVAL));
+        this.bloom = conf.getBoolean(BLOOM, true);
+        this.threads = Math.max(1, conf.getInt(THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * 把inputDir下的所有普通文件(不递归)构建为outputDir下的MapFile
+     *
+     * @param inputDir
+     * @param outputDir
+     * @return 写入的文件数
+     * @throws IOException
+     */
+    public long build(java.nio.file.Path inputDir, Path outputDir) throws IOException {
+        long start = System.currentTimeMillis();
+        java.nio.file.Path tmpDir = Files.createTempDirectory("smallfile-sort-");
+        try {
+            // 外部排序：分批排序写入临时文件
+            List<java.nio.file.Path> chunks = new ArrayList<>();
+            long total = sortChunks(inputDir, tmpDir, chunks);
+
+            // 多路归并 + 并行读取 + 顺序写入
+            try (NameMerger merger = new NameMerger(chunks)) {
+                write(inputDir, merger, total, outputDir);
+            }
+
+            logger.info("built {} with {} files from {} sorted chunks in {} ms",
+                    outputDir, total, chunks.size(), System.currentTimeMillis() - start);
+            return total;
+        } finally {
+            try (DirectoryStream<java.nio.file.Path> stream = Files.newDirectoryStream(tmpDir)) {
+                for (java.nio.file.Path chunk : stream) {
+                    Files.deleteIfExists(chunk);
+                }
+            }
+            Files.deleteIfExists(tmpDir);
+        }
+    }
+
+    /**
+     * 流式遍历目录, 每chunkSize个文件名排序后写入一个临时文件
+     */
+    private long sortChunks(java.nio.file.Path inputDir, java.nio.file.Path tmpDir, List<java.nio.file.Path> chunks)
+            throws IOException {
+        byte[][] names = new byte[chunkSize][];
+        int size = 0;
+        long total = 0L;
+        try (DirectoryStream<java.nio.file.Path> stream = Files.newDirectoryStream(inputDir)) {
+            for (java.nio.file.Path file : stream) {
+                if (!Files.isRegularFile(file)) {
+                    continue;
+                }
+                names[size++] = file.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+                total++;
+                if (size == chunkSize) {
+                    chunks.add(writeChunk(names, size, tmpDir, chunks.size()));
+                    size = 0;
+                }
+            }
+        }
+        if (size > 0) {
+            chunks.add(writeChunk(names, size, tmpDir, chunks.size()));
+        }
+        return total;
+    }
+
+    private static java.nio.file.Path writeChunk(byte[][] names, int size, java.nio.file.Path tmpDir, int index)
+            throws IOException {
+        Arrays.sort(names, 0, size, SmallFileMapBuilder::compareNames);
+        java.nio.file.Path chunk = tmpDir.resolve("chunk-" + index);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(chunk)))) {
+            for (int i = 0; i < size; i++) {
+                out.writeInt(names[i].length);
+                out.write(names[i]);
+                names[i] = null;
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * 按顺序读取文件内容并写入MapFile, 最多预读threads * 2个文件
+     */
+    private void write(java.nio.file.Path inputDir, NameMerger merger, long total, Path outputDir) throws IOException {
+        Configuration writerConf = new Configuration(conf);
+        MapFile.Writer.setIndexInterval(writerConf, indexInterval);
+        if (bloom) {
+            // bloom过滤器按文件总数分配, 保证误判率
+            writerConf.setInt("io.mapfile.bloom.size", (int) Math.max(1L, Math.min(Integer.MAX_VALUE, total)));
+        }
+
+        SequenceFile.Writer.Option[] options = new SequenceFile.Writer.Option[]{
+                MapFile.Writer.keyClass(Text.class),
+                MapFile.Writer.valueClass(BytesWritable.class),
+                MapFile.Writer.compression(SequenceFile.CompressionType.BLOCK, SmallFilePacker.resolveCodec(conf))
+        };
+
+        int window = threads * 2;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Deque<Future<byte[]>> pending = new ArrayDeque<>(window);
+        Deque<String> pendingNames = new ArrayDeque<>(window);
+        try (MapFile.Writer writer = bloom
+                ? new BloomMapFile.Writer(writerConf, outputDir, options)
+                : new MapFile.Writer(writerConf, outputDir, options)) {
+            Text key = new Text();
+            while (true) {
+                // 补满预读窗口
+                while (pending.size() < window && merger.hasNext()) {
+                    String name = merger.next();
+                    java.nio.file.Path file = inputDir.resolve(name);
+                    pending.addLast(executor.submit(() -> SmallFilePacker.readFully(file)));
+                    pendingNames.addLast(name);
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+
+                // 按提交顺序写入, key保持有序
+                byte[] content = pending.removeFirst().get();
+                key.set(pendingNames.removeFirst());
+                writer.append(key, new BytesWritable(content));
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("failed to read file", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while building " + outputDir, e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 按UTF-8字节序比较, 与Text.Comparator一致
+     */
+    static int compareNames(byte[] a, byte[] b) {
+        return WritableComparator.compareBytes(a, 0, a.length, b, 0, b.length);
+    }
+
+    /**
+     * 多路归并多个已排序的临时文件, 按字节序依次返回文件名
+     */
+    private static class NameMerger implements Closeable {
+
+        private final PriorityQueue<Cursor> heap = new PriorityQueue<>((a, b) -> compareNames(a.current, b.current));
+        private final List<Cursor> cursors = new ArrayList<>();
+
+        NameMerger(List<java.nio.file.Path> chunks) throws IOException {
+            for (java.nio.file.Path chunk : chunks) {
+                Cursor cursor = new Cursor(chunk);
+                cursors.add(cursor);
+                if (cursor.advance()) {
+                    heap.add(cursor);
+                }
+            }
+        }
+
+        boolean hasNext() {
+            return !heap.isEmpty();
+        }
+
+        String next() throws IOException {
+            Cursor cursor = heap.poll();
+            String name = new String(cursor.current, StandardCharsets.UTF_8);
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+            return name;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Cursor cursor : cursors) {
+                cursor.in.close();
+            }
+        }
+    }
+
+    private static class Cursor {
+
+        private final DataInputStream in;
+        private byte[] current;
+
+        Cursor(java.nio.file.Path chunk) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(chunk)));
+        }
+
+        boolean advance() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                current = null;
+                return false;
+            }
+            current = new byte[length];
+            in.readFully(current);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BloomMapFile;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.bloom.DynamicBloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 线程安全的小文件查找服务：按文件名从SmallFileMapBuilder构建的MapFile/BloomMapFile中随机读取文件内容
+ * <p>
+ * 1、MapFile.Reader不是线程安全的(get(..)内部会seek), 所以维护一个Reader池, 每次查找借出一个, 用完归还;
+ * Reader按需打开, 最多smallfile.map.readers个, 池满时等待其他线程归还
+ * 2、bloom文件只加载一次, 所有线程共享; bloom判定不存在的文件名直接返回null, 不借Reader、不读数据文件
+ * 3、MapFile.Reader自身也会按需加载一次index, 之后每次查找只需在内存中二分查找index, 再seek到数据文件中读取最多一个索引间隔的记录
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class SmallFileMapLookup implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmallFileMapLookup.class);
+
+    public static final String READERS = "smallfile.map.readers";
+
+    private final Configuration conf;
+    private final Path dir;
+    private final int maxReaders;
+
+    // Reader池
+    private final BlockingQueue<MapFile.Reader> idle;
+    private final List<MapFile.Reader> opened = new ArrayList<>();
+
+    // bloom过滤器, 不是BloomMapFile时为null; 序列化key用的缓冲区每个线程一个
+    private final DynamicBloomFilter bloomFilter;
+    private final ThreadLocal<DataOutputBuffer> keyBuffer = ThreadLocal.withInitial(DataOutputBuffer::new);
+
+    // 统计
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong bloomRejects = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile boolean closed;
+
+    public SmallFileMapLookup(Configuration conf, Path dir) throws IOException {
+        this.conf = conf;
+        this.dir = dir;
+        this.maxReaders = Math.max(1, conf.getInt(READERS, Runtime.getRuntime().availableProcessors()));
+        this.idle = new ArrayBlockingQueue<>(maxReaders);
+        this.bloomFilter = loadBloomFilter(conf, dir);
+    }
+
+    /**
+     * 按文件名查找文件内容
+     *
+     * @param name
+     * @return 文件内容, 不存在时返回null
+     * @throws IOException
+     */
+    public byte[] get(String name) throws IOException {
+        BytesWritable value = new BytesWritable();
+        return get(new Text(name), value) ? value.copyBytes() : null;
+    }
+
+    /**
+     * 按文件名查找文件内容, 读到调用方提供的value中, 调用方可以复用value
+     *
+     * @param name
+     * @param value
+     * @return 是否存在
+     * @throws IOException
+     */
+    public boolean get(Text name, BytesWritable value) throws IOException {
+        lookups.incrementAndGet();
+        if (!probablyHasKey(name)) {
+            bloomRejects.incrementAndGet();
+            return false;
+        }
+
+        MapFile.Reader reader = borrow();
+        try {
+            if (reader.get(name, value) == null) {
+                misses.incrementAndGet();
+                return false;
+            }
+            return true;
+        } finally {
+            idle.offer(reader);
+        }
+    }
+
+    /**
+     * bloom过滤器判定：false表示一定不存在; 与BloomMapFile.Writer写入时一样, 用key序列化后的字节作为bloom的key
+     *
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    public boolean probablyHasKey(Text name) throws IOException {
+        if (bloomFilter == null) {
+            return true;
+        }
+        DataOutputBuffer buffer = keyBuffer.get();
+        buffer.reset();
+        name.write(buffer);
+        byte[] bytes = new byte[buffer.getLength()];
+        System.arraycopy(buffer.getData(), 0, bytes, 0, bytes.length);
+        return bloomFilter.membershipTest(new Key(bytes, 1.0));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (opened) {
+            for (MapFile.Reader reader : opened) {
+                reader.close();
+            }
+            opened.clear();
+        }
+        idle.clear();
+        logger.info("closed {}: {} lookups, {} rejected by bloom filter, {} misses", dir, lookups.get(),
+                bloomRejects.get(), misses.get());
+    }
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public long getBloomRejects() {
+        return bloomRejects.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 借出一个Reader：优先复用空闲的, 未达上限时新打开一个, 否则等待归还
+     */
+    private MapFile.Reader borrow() throws IOException {
+        if (closed) {
+            throw new IOException("lookup service closed: " + dir);
+        }
+        MapFile.Reader reader = idle.poll();
+        if (reader != null) {
+            return reader;
+        }
+
+        synchronized (opened) {
+            if (opened.size() < maxReaders) {
+                reader = new MapFile.Reader(dir, conf);
+                opened.add(reader);
+                return reader;
+            }
+        }
+
+        try {
+            return idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a reader", e);
+        }
+    }
+
+    /**
+     * 加载BloomMapFile的bloom文件, 不存在时返回null
+     */
+    private static DynamicBloomFilter loadBloomFilter(Configuration conf, Path dir) throws IOException {
+        Path bloomPath = new Path(dir, BloomMapFile.BLOOM_FILE_NAME);
+        FileSystem fs = bloomPath.getFileSystem(conf);
+        if (!fs.exists(bloomPath)) {
+            return null;
+        }
+
+        DynamicBloomFilter filter = new DynamicBloomFilter();
+        try (FSDataInputStream in = fs.open(bloomPath)) {
+            filter.readFields(in);
+        }
+        return filter;
+    }
+}
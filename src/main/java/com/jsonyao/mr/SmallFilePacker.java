@@ -0,0 +1,393 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * 小文件打包器：把本地目录下的小文件并行读取后, 写入一个BLOCK压缩的SequenceFile, <文件名, 文件字节>
+ * <p>
+ * 1、读：线程池通过FileChannel读取整个文件到byte[], 不做任何字符集解码, value直接用BytesWritable包装, 不再拷贝
+ * 2、管道：读线程与写线程之间是有界队列, 队列满时读线程阻塞, 内存占用 ≈ 队列长度 * 单个文件大小, 不随文件总数增长
+ * 3、写：SequenceFile.Writer不是线程安全的, 由调用pack(..)的线程单独写; BLOCK压缩把多条记录攒成一个块再压缩, 小文件的压缩率远高于RECORD压缩
+ * 4、进度：每隔一段时间打印已写入的文件数、字节数以及 文件/秒、MB/秒
+ * 5、索引：每smallfile.pack.index.sync.interval条记录调用一次writer.sync(), 记录每个文件名所在的sync点和序号,
+ * 打包完成后写出旁路索引<output>.idx(见SmallFileSeqIndex); 间隔越小定位越快, 但每个压缩块越小, 压缩率越低
+ * <p>
+ * 写入顺序为读取完成的顺序, 不保证与输入顺序一致
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class SmallFilePacker {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmallFilePacker.class);
+
+    public static final String THREADS = "smallfile.pack.threads";
+    public static final String QUEUE_SIZE = "smallfile.pack.queue.size";
+    public static final String CODEC = "smallfile.pack.codec";
+    public static final String REPORT_INTERVAL_MS = "smallfile.pack.report.interval.ms";
+    public static final String INDEX = "smallfile.pack.index";
+    public static final String INDEX_SYNC_INTERVAL = "smallfile.pack.index.sync.interval";
+
+    public static final String DEFAULT_CODEC = "default";
+    public static final long DEFAULT_REPORT_INTERVAL_MS = 5000L;
+    public static final int DEFAULT_INDEX_SYNC_INTERVAL = 128;
+
+    private final Configuration conf;
+    private final int threads;
+    private final int queueSize;
+    private final CompressionCodec codec;
+    private final long reportIntervalMs;
+    private final boolean index;
+    private final int indexSyncInterval;
+
+    /**
+     * 打包结果统计
+     */
+    public static class Result {
+
+        private final long files;
+        private final long bytes;
+        private final long millis;
+
+        Result(long files, long bytes, long millis) {
+            this.files = files;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        public long getFiles() {
+            return files;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d files, %.1f MB in %d ms", files, bytes / 1048576.0, millis);
+        }
+    }
+
+    /**
+     * 读线程交给写线程的一个文件, error不为null表示读取失败
+     */
+    private static class Entry {
+
+        private final String name;
+        private final byte[] content;
+        private final Throwable error;
+
+        Entry(String name, byte[] content, Throwable error) {
+            this.name = name;
+            this.content = content;
+            this.error = error;
+        }
+    }
+
+    /**
+     * 按conf中的smallfile.pack.*配置创建打包器
+     * <p>
+     * smallfile.pack.codec支持CompressionCodecFactory识别的类名或别名, 如default、gzip、bzip2、lz4、snappy、zstandard
+     *
+     * @param conf
+     */
+    public SmallFilePacker(Configuration conf) {
+        this.conf = conf;
+        this.threads = Math.max(1, conf.getInt(THREADS, Runtime.getRuntime().availableProcessors()));
+        this.queueSize = Math.max(1, conf.getInt(QUEUE_SIZE, threads * 4));
+        this.reportIntervalMs = conf.getLong(REPORT_INTERVAL_MS, DEFAULT_REPORT_INTERVAL_MS);
+        this.index = conf.getBoolean(INDEX, true);
+        this.indexSyncInterval = Math.max(1, conf.getInt(INDEX_SYNC_INTERVAL, DEFAULT_INDEX_SYNC_INTERVAL));
+
+        this.codec = resolveCodec(conf);
+    }
+
+    /**
+     * 按smallfile.pack.codec解析压缩编解码器
+     *
+     * @param conf
+     * @return
+     */
+    static CompressionCodec resolveCodec(Configuration conf) {
+        String codecName = conf.get(CODEC, DEFAULT_CODEC);
+        CompressionCodec codec = new CompressionCodecFactory(conf).getCodecByName(codecName);
+        if (codec == null) {
+            throw new IllegalArgumentException("unknown compression codec: " + codecName);
+        }
+        return codec;
+    }
+
+    /**
+     * 列出本地目录下的所有普通文件(不递归)
+     *
+     * @param inputDir
+     * @return
+     * @throws IOException
+     */
+    public static List<java.nio.file.Path> listFiles(java.nio.file.Path inputDir) throws IOException {
+        List<java.nio.file.Path> files = new ArrayList<>();
+        try (Stream<java.nio.file.Path> stream = Files.list(inputDir)) {
+            stream.filter(Files::isRegularFile).forEach(files::add);
+        }
+        return files;
+    }
+
+    /**
+     * 打包files到output, output已存在时会被覆盖; smallfile.pack.index=true(默认)时同时写出<output>.idx
+     *
+     * @param files
+     * @param output
+     * @return
+     * @throws IOException
+     */
+    public Result pack(List<java.nio.file.Path> files, Path output) throws IOException {
+        try (IndexedWriter writer = createIndexedWriter(output)) {
+            Result result = pack(files, writer);
+            writer.finish();
+            return result;
+        }
+    }
+
+    /**
+     * 打包files, 追加到调用方创建的writer中, 不关闭writer
+     *
+     * @param files
+     * @param writer key为Text, value为BytesWritable
+     * @return
+     * @throws IOException
+     */
+    public Result pack(List<java.nio.file.Path> files, SequenceFile.Writer writer) throws IOException {
+        return pack(files, new IndexedWriter(conf, writer, null, null, indexSyncInterval));
+    }
+
+    /**
+     * 创建写入output的IndexedWriter, smallfile.pack.index=true(默认)时关闭后写出<output>.idx
+     *
+     * @param output
+     * @return
+     * @throws IOException
+     */
+    public IndexedWriter createIndexedWriter(Path output) throws IOException {
+        return new IndexedWriter(conf, createWriter(output), index ? new SmallFileSeqIndex.Builder() : null,
+                SmallFileSeqIndex.indexPath(output), indexSyncInterval);
+    }
+
+    /**
+     * 打包files, 由调用线程按读取完成的顺序写入writer
+     */
+    private Result pack(List<java.nio.file.Path> files, IndexedWriter writer) throws IOException {
+        BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(queueSize);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.size())));
+        for (java.nio.file.Path file : files) {
+            executor.execute(() -> {
+                Entry entry;
+                try {
+                    entry = new Entry(file.getFileName().toString(), readFully(file), null);
+                } catch (Throwable e) {
+                    // 任何失败(包括大文件的OutOfMemoryError)都要放入一个Entry, 否则写线程会在take()上一直等待
+                    entry = new Entry(file.toString(), null, e);
+                }
+                try {
+                    queue.put(entry);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        executor.shutdown();
+
+        Text key = new Text();
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        long lastFiles = 0L;
+        long lastBytes = 0L;
+        long bytes = 0L;
+        try {
+            for (int written = 0; written < files.size(); written++) {
+                Entry entry = queue.take();
+                if (entry.error != null) {
+                    throw new IOException("failed to read " + entry.name, entry.error);
+                }
+
+                key.set(entry.name);
+                writer.append(key, new BytesWritable(entry.content));
+                bytes += entry.content.length;
+
+                // 定期打印进度
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= reportIntervalMs) {
+                    double seconds = Math.max(1L, now - lastReport) / 1000.0;
+                    logger.info("packed {}/{} files, {} MB, {} files/s, {} MB/s", written + 1, files.size(),
+                            String.format("%.1f", bytes / 1048576.0),
+                            String.format("%.0f", (written + 1 - lastFiles) / seconds),
+                            String.format("%.1f", (bytes - lastBytes) / 1048576.0 / seconds));
+                    lastReport = now;
+                    lastFiles = written + 1;
+                    lastBytes = bytes;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while packing", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long millis = Math.max(1L, System.currentTimeMillis() - start);
+        Result result = new Result(files.size(), bytes, millis);
+        logger.info("packed {}, {} files/s, {} MB/s, codec {}", result,
+                String.format("%.0f", files.size() * 1000.0 / millis),
+                String.format("%.1f", bytes / 1048576.0 * 1000.0 / millis),
+                codec.getClass().getSimpleName());
+        return result;
+    }
+
+    /**
+     * 创建BLOCK压缩的SequenceFile.Writer, <Text, BytesWritable>
+     *
+     * @param output
+     * @return
+     * @throws IOException
+     */
+    public SequenceFile.Writer createWriter(Path output) throws IOException {
+        return SequenceFile.createWriter(conf,
+                SequenceFile.Writer.file(output),
+                SequenceFile.Writer.keyClass(Text.class),
+                SequenceFile.Writer.valueClass(BytesWritable.class),
+                SequenceFile.Writer.compression(SequenceFile.CompressionType.BLOCK, codec));
+    }
+
+    /**
+     * 带旁路索引的writer：每indexSyncInterval条记录调用一次writer.sync(), 记录每个文件名所在的sync点和序号,
+     * finish()时先关闭归档, 再写出索引, 索引存在即说明归档完整; 未finish()就close()时只关闭归档, 不写索引
+     * <p>
+     * 收集索引时writer必须是BLOCK压缩的(由createWriter(..)创建): BLOCK压缩的writer在每个块之前写sync标记,
+     * sync()之后的getLength()即下一个块的sync标记位置
+     */
+    public static class IndexedWriter implements Closeable {
+
+        private final Configuration conf;
+        private final SequenceFile.Writer writer;
+        private final SmallFileSeqIndex.Builder indexBuilder;
+        private final Path indexPath;
+        private final int indexSyncInterval;
+
+        private long syncPosition = 0L;
+        private int ordinal = 0;
+        private long written = 0L;
+        private boolean finished;
+
+        IndexedWriter(Configuration conf, SequenceFile.Writer writer, SmallFileSeqIndex.Builder indexBuilder,
+                      Path indexPath, int indexSyncInterval) {
+            this.conf = conf;
+            this.writer = writer;
+            this.indexBuilder = indexBuilder;
+            this.indexPath = indexPath;
+            this.indexSyncInterval = indexSyncInterval;
+        }
+
+        /**
+         * 追加一条记录
+         *
+         * @param key   文件名
+         * @param value 文件内容
+         * @throws IOException
+         */
+        public void append(Text key, BytesWritable value) throws IOException {
+            if (indexBuilder != null) {
+                if (written == 0 || ordinal == indexSyncInterval) {
+                    writer.sync();
+                    syncPosition = writer.getLength();
+                    ordinal = 0;
+                }
+                indexBuilder.add(key, syncPosition, ordinal++);
+            }
+            writer.append(key, value);
+            written++;
+        }
+
+        public long getWritten() {
+            return written;
+        }
+
+        /**
+         * 写入完成：关闭归档, 收集了索引时再写出索引文件
+         *
+         * @throws IOException
+         */
+        public void finish() throws IOException {
+            if (finished || indexPath == null) {
+                return;
+            }
+            finished = true;
+            writer.close();
+            if (indexBuilder != null) {
+                indexBuilder.write(indexPath.getFileSystem(conf), indexPath);
+                logger.info("wrote {} index entries to {}", indexBuilder.size(), indexPath);
+            }
+        }
+
+        /**
+         * 未finish()时只关闭归档(如写入失败); 调用方传入的writer不由这里关闭(indexPath为null)
+         *
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            if (finished || indexPath == null) {
+                return;
+            }
+            finished = true;
+            writer.close();
+        }
+    }
+
+    /**
+     * 通过FileChannel把整个文件读到byte[]中
+     */
+    static byte[] readFully(java.nio.file.Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new IOException("file too large to pack: " + file + " (" + size + " bytes)");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("file truncated while reading: " + file);
+            }
+            return buffer.array();
+        }
+    }
+}
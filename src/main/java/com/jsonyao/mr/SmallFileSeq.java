@@ -1,14 +1,15 @@
 package com.jsonyao.mr;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 
 /**
  * 小文件解决方案之 SequenceFile
@@ -25,6 +26,15 @@ public class SmallFileSeq {
 
         // 读取HDFS中合并后的inputFile文件
         read(hdfsFilePath);
+
+        // 通过旁路索引按文件名直接定位读取
+        get(hdfsFilePath, "1.txt");
+
+        // 并行扫描整个文件, 统计文件数与总字节数
+        stat(hdfsFilePath);
+
+        // 增量归档：只打包新增或变化的文件
+        append("D:\\Users\\yaocs2\\data\\myWorkspace\\imooc_bigdata\\bigdata_course_materials\\hadoop\\mapreduce+yarn\\smallFile", "/seqArchive", "1.txt");
     }
 
     /**
@@ -42,38 +52,9 @@ public class SmallFileSeq {
         FileSystem fileSystem = FileSystem.get(conf);
         fileSystem.delete(new Path(outputFile), true);
 
-        /**
-         * 构造options数组：
-         *
-         * a. 输出路径
-         * b. key的类型
-         * c. value的类型
-         */
-        SequenceFile.Writer.Option[] options = new SequenceFile.Writer.Option[] {
-                SequenceFile.Writer.file(new Path(outputFile)),
-                SequenceFile.Writer.keyClass(Text.class),
-                SequenceFile.Writer.valueClass(Text.class)
-        };
-
-        SequenceFile.Writer writer = SequenceFile.createWriter(conf, options);
-
-        // 读取指定目录下的所有小文件
-        File inputDirPath = new File(inputDir);
-        if(inputDirPath.isDirectory()) {
-            File[] files = inputDirPath.listFiles();
-            for (File file : files) {
-                String fileName = file.getName();
-                String content = FileUtils.readFileToString(file, "UTF-8");
-
-                // 把合并后的文件写到HDFS中
-                Text key = new Text(fileName);
-                Text value = new Text(content);
-                writer.append(key, value);
-            }
-        }
-
-        // 关闭流
-        writer.close();
+        // 并行读取小文件, 以<文件名, 文件字节>写入BLOCK压缩的SequenceFile
+        SmallFilePacker packer = new SmallFilePacker(conf);
+        packer.pack(SmallFilePacker.listFiles(Paths.get(inputDir)), new Path(outputFile));
     }
 
     /**
@@ -91,15 +72,99 @@ public class SmallFileSeq {
 
         // 创建缓冲区
         Text key = new Text();
-        Text value = new Text();
+        BytesWritable value = new BytesWritable();
 
         // 开始读取
         while (reader.next(key, value)) {
             System.out.print(String.format("文件名: %s, ", key.toString()));
-            System.out.println(String.format("文件内容: %s", value.toString()));
+            System.out.println(String.format("文件内容: %s", new String(value.getBytes(), 0, value.getLength(), StandardCharsets.UTF_8)));
         }
 
         // 关闭流
         reader.close();
     }
-}
\ No newline at end of file
+
+    /**
+     * 增量合并inputDir下的小文件到HDFS#archiveDir目录中, 不删除已有归档, 只打包新增或变化的文件, 再按文件名读取
+     *
+     * @param inputDir
+     * @param archiveDir
+     * @param fileName
+     * @throws IOException
+     */
+    private static void append(String inputDir, String archiveDir, String fileName) throws IOException {
+        Configuration conf = new Configuration();
+        conf.set("fs.defaultFS", "hdfs://bigdata01:9000");
+
+        try (SmallFileArchive archive = new SmallFileArchive(conf, new Path(archiveDir))) {
+            System.out.println(archive.update(Paths.get(inputDir)));
+
+            BytesWritable value = new BytesWritable();
+            System.out.print(String.format("文件名: %s, ", fileName));
+            if (archive.get(new Text(fileName), value)) {
+                System.out.println(String.format("文件内容: %s", new String(value.getBytes(), 0, value.getLength(), StandardCharsets.UTF_8)));
+            } else {
+                System.out.println("文件不存在");
+            }
+        }
+    }
+
+    /**
+     * 通过旁路索引<inputFile>.idx按文件名读取, 不扫描整个文件
+     *
+     * @param inputFile
+     * @param fileName
+     * @throws IOException
+     */
+    private static void get(String inputFile, String fileName) throws IOException {
+        Configuration conf = new Configuration();
+        conf.set("fs.defaultFS", "hdfs://bigdata01:9000");
+
+        Path archive = new Path(inputFile);
+        try (SmallFileSeqIndex index = SmallFileSeqIndex.open(conf, SmallFileSeqIndex.indexPath(archive));
+             SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(archive))) {
+            BytesWritable value = new BytesWritable();
+            System.out.print(String.format("文件名: %s, ", fileName));
+            if (index.get(reader, new Text(fileName), value)) {
+                System.out.println(String.format("文件内容: %s", new String(value.getBytes(), 0, value.getLength(), StandardCharsets.UTF_8)));
+            } else {
+                System.out.println("文件不存在");
+            }
+        }
+    }
+
+    /**
+     * 并行扫描HDFS中合并后的inputFile文件, 统计文件数、总字节数以及最大文件大小, 不收集记录
+     *
+     * @param inputFile
+     * @throws IOException
+     */
+    private static void stat(String inputFile) throws IOException {
+        Configuration conf = new Configuration();
+        conf.set("fs.defaultFS", "hdfs://bigdata01:9000");
+
+        long[] stat = new SequenceFileScanner(conf).scan(new Path(inputFile),
+                new SequenceFileScanner.Aggregator<Text, BytesWritable, long[]>() {
+                    @Override
+                    public long[] create() {
+                        return new long[3];
+                    }
+
+                    @Override
+                    public void visit(long[] accumulator, Text key, BytesWritable value) {
+                        accumulator[0]++;
+                        accumulator[1] += value.getLength();
+                        accumulator[2] = Math.max(accumulator[2], value.getLength());
+                    }
+
+                    @Override
+                    public long[] merge(long[] left, long[] right) {
+                        left[0] += right[0];
+                        left[1] += right[1];
+                        left[2] = Math.max(left[2], right[2]);
+                        return left;
+                    }
+                });
+        System.out.println(String.format("文件数: %d, 总字节数: %d, 最大文件字节数: %d", stat[0], stat[1], stat[2]));
+    }
+}
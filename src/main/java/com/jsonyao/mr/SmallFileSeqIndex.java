@@ -0,0 +1,299 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 打包后SequenceFile的旁路索引：<archive>.idx, 记录每个文件名所在的sync点偏移量, 以及它是该sync点之后的第几条记录
+ * <p>
+ * 文件格式(大端)：
+ * 1、头部24字节：int魔数 + int版本 + long条目数 + long key区的起始偏移量
+ * 2、槽位表：每个条目固定24字节 = long sync偏移量 + long key偏移量(相对key区) + int key长度 + int序号, 按key的字节序排序
+ * 3、key区：所有文件名的UTF-8字节按排序后的顺序连续存放
+ * <p>
+ * 加载时整个文件通过mmap映射到内存(非本地文件系统时先拷贝到本地临时文件), 查找为槽位表上的二分查找, 直接比较映射区中的字节,
+ * 不反序列化、不创建对象, 百万级条目只需约20次比较
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class SmallFileSeqIndex implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(SmallFileSeqIndex.class);
+
+    public static final String SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x53464958;// "SFIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int SLOT_SIZE = 24;
+
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final int blobOffset;
+    private final File localCopy;
+
+    private SmallFileSeqIndex(MappedByteBuffer buffer, File localCopy) throws IOException {
+        this.buffer = buffer;
+        this.localCopy = localCopy;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a small file index");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("unsupported small file index version: " + buffer.getInt(4));
+        }
+        this.size = (int) buffer.getLong(8);
+        this.blobOffset = (int) buffer.getLong(16);
+    }
+
+    /**
+     * 归档文件对应的索引文件路径
+     *
+     * @param archive
+     * @return
+     */
+    public static Path indexPath(Path archive) {
+        return archive.suffix(SUFFIX);
+    }
+
+    /**
+     * 加载索引：本地文件直接mmap; 其他文件系统(如HDFS)先拷贝到本地临时文件, 再mmap, 关闭时删除临时文件
+     *
+     * @param conf
+     * @param indexPath
+     * @return
+     * @throws IOException
+     */
+    public static SmallFileSeqIndex open(Configuration conf, Path indexPath) throws IOException {
+        FileSystem fs = indexPath.getFileSystem(conf);
+        File file;
+        File localCopy = null;
+        if (fs instanceof LocalFileSystem || fs instanceof RawLocalFileSystem) {
+            file = new File(indexPath.toUri().getPath());
+        } else {
+            localCopy = File.createTempFile("smallfile-", SUFFIX);
+            fs.copyToLocalFile(false, indexPath, new Path(localCopy.getAbsolutePath()), true);
+            file = localCopy;
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("small file index larger than 2GB: " + indexPath);
+            }
+            // 映射在channel关闭后依然有效
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            SmallFileSeqIndex index = new SmallFileSeqIndex(buffer, localCopy);
+            logger.info("loaded {} entries from {}", index.size(), indexPath);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            if (localCopy != null) {
+                localCopy.delete();
+            }
+            throw e;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 二分查找文件名
+     *
+     * @param key UTF-8字节
+     * @param start
+     * @param length
+     * @return 槽位下标, 不存在时返回-1
+     */
+    public int find(byte[] key, int start, int length) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareSlot(mid, key, start, length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int find(Text key) {
+        return find(key.getBytes(), 0, key.getLength());
+    }
+
+    /**
+     * 条目所在的sync点在归档文件中的偏移量
+     */
+    public long syncPosition(int slot) {
+        return buffer.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    /**
+     * 条目是sync点之后的第几条记录, 从0开始
+     */
+    public int ordinal(int slot) {
+        return buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 20);
+    }
+
+    /**
+     * 通过索引直接定位并读取一条记录：reader.sync(..)跳到sync点, 再跳过ordinal条记录(BLOCK压缩时跳过的记录不解码value)
+     * <p>
+     * reader不是线程安全的, 多线程查找时每个线程使用自己的reader; 索引本身可以多线程共享
+     *
+     * @param reader 归档文件的reader
+     * @param name
+     * @param value
+     * @return 是否存在
+     * @throws IOException
+     */
+    public boolean get(SequenceFile.Reader reader, Text name, BytesWritable value) throws IOException {
+        int slot = find(name);
+        if (slot < 0) {
+            return false;
+        }
+
+        reader.sync(syncPosition(slot));
+        Text key = new Text();
+        for (int i = ordinal(slot); i >= 0; i--) {
+            if (!reader.next(key)) {
+                throw new IOException("index points past the end of the archive: " + name);
+            }
+        }
+        if (!key.equals(name)) {
+            throw new IOException("index out of date, expected " + name + " but found " + key);
+        }
+        reader.getCurrentValue(value);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (localCopy != null) {
+            localCopy.delete();
+        }
+    }
+
+    private int compareSlot(int slot, byte[] key, int start, int length) {
+        int base = HEADER_SIZE + slot * SLOT_SIZE;
+        int offset = blobOffset + (int) buffer.getLong(base + 8);
+        int slotLength = buffer.getInt(base + 16);
+        int n = Math.min(slotLength, length);
+        for (int i = 0; i < n; i++) {
+            int a = buffer.get(offset + i) & 0xff;
+            int b = key[start + i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return slotLength - length;
+    }
+
+    /**
+     * 打包时收集索引条目, 打包完成后排序并写出索引文件
+     */
+    public static class Builder {
+
+        private byte[] keys = new byte[64 * 1024];
+        private int keysUsed;
+        private int[] keyOffsets = new int[1024];
+        private int[] keyLengths = new int[1024];
+        private long[] syncPositions = new long[1024];
+        private int[] ordinals = new int[1024];
+        private int size;
+
+        /**
+         * 记录一个条目
+         *
+         * @param key
+         * @param syncPosition 条目所在的sync点偏移量
+         * @param ordinal      条目是sync点之后的第几条记录
+         */
+        public void add(Text key, long syncPosition, int ordinal) {
+            if (size == keyOffsets.length) {
+                int capacity = size << 1;
+                keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+                keyLengths = Arrays.copyOf(keyLengths, capacity);
+                syncPositions = Arrays.copyOf(syncPositions, capacity);
+                ordinals = Arrays.copyOf(ordinals, capacity);
+            }
+            if (keysUsed + key.getLength() > keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(keys.length << 1, keysUsed + key.getLength()));
+            }
+
+            System.arraycopy(key.getBytes(), 0, keys, keysUsed, key.getLength());
+            keyOffsets[size] = keysUsed;
+            keyLengths[size] = key.getLength();
+            syncPositions[size] = syncPosition;
+            ordinals[size] = ordinal;
+            keysUsed += key.getLength();
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * 按key排序后写出索引文件
+         *
+         * @param fs
+         * @param indexPath
+         * @throws IOException
+         */
+        public void write(FileSystem fs, Path indexPath) throws IOException {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> WritableComparator.compareBytes(
+                    keys, keyOffsets[a], keyLengths[a], keys, keyOffsets[b], keyLengths[b]));
+
+            try (FSDataOutputStream fsOut = fs.create(indexPath, true);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fsOut, 64 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(size);
+                out.writeLong(HEADER_SIZE + (long) size * SLOT_SIZE);
+
+                long keyOffset = 0L;
+                for (int i = 0; i < size; i++) {
+                    int entry = order[i];
+                    out.writeLong(syncPositions[entry]);
+                    out.writeLong(keyOffset);
+                    out.writeInt(keyLengths[entry]);
+                    out.writeInt(ordinals[entry]);
+                    keyOffset += keyLengths[entry];
+                }
+                for (int i = 0; i < size; i++) {
+                    int entry = order[i];
+                    out.write(keys, keyOffsets[entry], keyLengths[entry]);
+                }
+            }
+        }
+    }
+}
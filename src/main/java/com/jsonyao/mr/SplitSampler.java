@@ -0,0 +1,110 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 在Driver端对Job的输入切片做抽样：按步长均匀选取若干切片, 每个切片只读取前若干行
+ * <p>
+ * 与InputSampler.SplitSampler思路相同, 但直接把文本行交给调用方处理, 而不是抽样TextInputFormat的key(行偏移量),
+ * 这样调用方可以按Mapper的解析逻辑, 从行中提取真正的Map输出key
+ *
+ * @author yaocs2
+ * @since 2022-08-22
+ */
+public class SplitSampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(SplitSampler.class);
+
+    public static final String MAX_SPLITS = "sampler.max.splits";
+    public static final String MAX_RECORDS_PER_SPLIT = "sampler.max.records.per.split";
+
+    public static final int DEFAULT_MAX_SPLITS = 10;
+    public static final int DEFAULT_MAX_RECORDS_PER_SPLIT = 10000;
+
+    /**
+     * 抽样行的回调
+     */
+    public interface LineVisitor {
+
+        /**
+         * 处理一行抽样数据, line会被复用, 需要保留时请自行拷贝
+         *
+         * @param line
+         */
+        void visit(Text line);
+    }
+
+    private SplitSampler() {
+    }
+
+    /**
+     * 按sampler.max.splits、sampler.max.records.per.split配置抽样
+     *
+     * @param job
+     * @param visitor
+     * @return 抽样的总行数
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static long sample(Job job, LineVisitor visitor) throws IOException, InterruptedException {
+        return sample(job,
+                job.getConfiguration().getInt(MAX_SPLITS, DEFAULT_MAX_SPLITS),
+                job.getConfiguration().getInt(MAX_RECORDS_PER_SPLIT, DEFAULT_MAX_RECORDS_PER_SPLIT),
+                visitor);
+    }
+
+    /**
+     * 抽样Job的文本输入
+     *
+     * @param job
+     * @param maxSplits          最多抽样的切片数
+     * @param maxRecordsPerSplit 每个切片最多读取的行数
+     * @param visitor
+     * @return 抽样的总行数
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static long sample(Job job, int maxSplits, int maxRecordsPerSplit, LineVisitor visitor)
+            throws IOException, InterruptedException {
+        TextInputFormat inputFormat = new TextInputFormat();
+        List<InputSplit> splits = inputFormat.getSplits(job);
+        if (splits.isEmpty()) {
+            return 0L;
+        }
+
+        TaskAttemptContext context = new TaskAttemptContextImpl(job.getConfiguration(), new TaskAttemptID());
+        int step = Math.max(1, splits.size() / Math.max(1, maxSplits));
+        int sampledSplits = 0;
+        long records = 0L;
+        for (int i = 0; i < splits.size() && sampledSplits < maxSplits; i += step) {
+            InputSplit split = splits.get(i);
+            RecordReader<LongWritable, Text> reader = inputFormat.createRecordReader(split, context);
+            try {
+                reader.initialize(split, context);
+                for (int n = 0; n < maxRecordsPerSplit && reader.nextKeyValue(); n++) {
+                    visitor.visit(reader.getCurrentValue());
+                    records++;
+                }
+            } finally {
+                reader.close();
+            }
+            sampledSplits++;
+        }
+
+        logger.info("sampled {} records from {} of {} splits", records, sampledSplits, splits.size());
+        return records;
+    }
+}
@@ -0,0 +1,199 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.slf4j.Logger;
+
+/**
+ * Map/Reduce任务的埋点：用Hadoop计数器代替逐条打印日志
+ * <p>
+ * 1、记录数、单词数、字节数、空单词数、Reduce值个数先在本地累加, 每FLUSH_INTERVAL条以及任务结束时才写入计数器
+ * 2、逐条的调试日志按1/N采样, 且只在DEBUG开启时输出, 日志参数使用{}占位符, 不采样时不会格式化字符串
+ * 3、统计每个任务Map/Reduce阶段的耗时(setup到cleanup), 任务结束时输出一条汇总日志
+ * <p>
+ * 通过 -Dmetrics.log.sample.rate=N 调整采样率, 0表示关闭逐条日志
+ *
+ * @author yaocs2
+ * @since 2022-08-22
+ */
+public class TaskMetrics {
+
+    public static final String SAMPLE_RATE = "metrics.log.sample.rate";
+    public static final long DEFAULT_SAMPLE_RATE = 10000L;
+
+    /**
+     * 本地累加多少条记录后, 写一次计数器
+     */
+    private static final long FLUSH_INTERVAL = 64 * 1024L;
+
+    /**
+     * 任务阶段
+     */
+    public enum Phase {
+        MAP, REDUCE
+    }
+
+    /**
+     * 埋点计数器
+     */
+    public enum Counter {
+        // 输入记录数：Map为行数, Reduce为key的个数
+        RECORDS,
+        // Map切出的单词数
+        TOKENS,
+        // Map输入的字节数
+        BYTES,
+        // Map按split(" ")语义会产生的空单词数(连续分隔符)
+        EMPTY_TOKENS,
+        // Reduce输入的值个数
+        VALUES,
+        // 所有Map任务的耗时之和(毫秒)
+        MAP_MILLIS,
+        // 所有Reduce任务的耗时之和(毫秒)
+        REDUCE_MILLIS
+    }
+
+    private final Logger logger;
+    private final Phase phase;
+    private final long sampleRate;
+    private final long startNanos;
+
+    // 尚未写入计数器的增量
+    private long records;
+    private long tokens;
+    private long bytes;
+    private long emptyTokens;
+    private long values;
+    private long unflushed;
+
+    // 本任务的总量, 用于任务结束时的汇总日志
+    private long totalRecords;
+    private long totalTokens;
+    private long totalBytes;
+
+    private long sampleCountdown;
+
+    private TaskMetrics(Configuration conf, Logger logger, Phase phase) {
+        this.logger = logger;
+        this.phase = phase;
+        this.sampleRate = logger.isDebugEnabled() ? conf.getLong(SAMPLE_RATE, DEFAULT_SAMPLE_RATE) : 0L;
+        this.sampleCountdown = 1;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * 在setup(..)中调用, 开始计时
+     *
+     * @param context
+     * @param logger
+     * @param phase
+     * @return
+     */
+    public static TaskMetrics start(TaskAttemptContext context, Logger logger, Phase phase) {
+        return new TaskMetrics(context.getConfiguration(), logger, phase);
+    }
+
+    /**
+     * 记录一条Map输入
+     *
+     * @param recordBytes 该条记录的字节数
+     * @param context
+     */
+    public void record(long recordBytes, TaskAttemptContext context) {
+        records++;
+        bytes += recordBytes;
+        totalRecords++;
+        totalBytes += recordBytes;
+        if (++unflushed >= FLUSH_INTERVAL) {
+            flush(context);
+        }
+    }
+
+    /**
+     * 记录一个Reduce分组
+     *
+     * @param valueCount 该key对应的值个数
+     * @param context
+     */
+    public void group(long valueCount, TaskAttemptContext context) {
+        values += valueCount;
+        record(0L, context);
+    }
+
+    /**
+     * 记录分词器在本行切出的单词数、空单词数
+     *
+     * @param tokenizer
+     */
+    public void tokens(TextTokenizer tokenizer) {
+        tokens(tokenizer.tokenCount(), tokenizer.emptyTokens());
+    }
+
+    /**
+     * 记录本行切出的单词数、空单词数
+     *
+     * @param tokenCount
+     * @param emptyTokenCount
+     */
+    public void tokens(long tokenCount, long emptyTokenCount) {
+        tokens += tokenCount;
+        emptyTokens += emptyTokenCount;
+        totalTokens += tokenCount;
+    }
+
+    /**
+     * 当前记录是否需要打印调试日志：DEBUG关闭或采样率为0时始终返回false
+     *
+     * @return
+     */
+    public boolean sample() {
+        if (sampleRate <= 0) {
+            return false;
+        }
+        if (--sampleCountdown > 0) {
+            return false;
+        }
+        sampleCountdown = sampleRate;
+        return true;
+    }
+
+    /**
+     * 在cleanup(..)中调用：写入剩余计数、阶段耗时, 并输出汇总日志
+     *
+     * @param context
+     */
+    public void finish(TaskAttemptContext context) {
+        flush(context);
+
+        long millis = (System.nanoTime() - startNanos) / 1000000L;
+        context.getCounter(phase == Phase.MAP ? Counter.MAP_MILLIS : Counter.REDUCE_MILLIS).increment(millis);
+
+        double seconds = Math.max(millis, 1L) / 1000.0;
+        logger.info("{} phase finished: records = {}, tokens = {}, bytes = {}, millis = {}, records/s = {}",
+                phase, totalRecords, totalTokens, totalBytes, millis, (long) (totalRecords / seconds));
+    }
+
+    private void flush(TaskAttemptContext context) {
+        if (records > 0) {
+            context.getCounter(Counter.RECORDS).increment(records);
+        }
+        if (tokens > 0) {
+            context.getCounter(Counter.TOKENS).increment(tokens);
+        }
+        if (bytes > 0) {
+            context.getCounter(Counter.BYTES).increment(bytes);
+        }
+        if (emptyTokens > 0) {
+            context.getCounter(Counter.EMPTY_TOKENS).increment(emptyTokens);
+        }
+        if (values > 0) {
+            context.getCounter(Counter.VALUES).increment(values);
+        }
+        records = 0;
+        tokens = 0;
+        bytes = 0;
+        emptyTokens = 0;
+        values = 0;
+        unflushed = 0;
+    }
+}
@@ -0,0 +1,227 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.io.Text;
+
+import java.nio.charset.CharacterCodingException;
+
+/**
+ * 字节级分词器：直接扫描Text.getBytes()[0, getLength()), 按空白字符切分单词
+ * <p>
+ * 1、不把UTF-8解码成String, 不走正则, 不创建String[], 单词只以(start, length)的形式暴露
+ * 2、连续的空格、制表符、回车换行都视为一个分隔符, 不会产生空单词
+ * 3、UTF-8多字节字符的每个字节都 >= 0x80, 不会被误判为ASCII空白字符
+ * <p>
+ * 非线程安全：每个Map任务持有一个实例, 通过reset(..)复用
+ *
+ * @author yaocs2
+ * @since 2022-08-21
+ */
+public class TextTokenizer {
+
+    private byte[] bytes;
+    private int end;
+    private int pos;
+
+    // 当前单词
+    private int start;
+    private int length;
+
+    // 本行已切出的单词数, 以及按split(" ")语义会产生的空单词数(行首分隔符、连续分隔符)
+    private int tokenCount;
+    private int emptyTokens;
+
+    /**
+     * 重新指向一行数据
+     *
+     * @param text
+     * @return
+     */
+    public TextTokenizer reset(Text text) {
+        return reset(text.getBytes(), 0, text.getLength());
+    }
+
+    /**
+     * 重新指向一段字节
+     *
+     * @param bytes
+     * @param offset
+     * @param len
+     * @return
+     */
+    public TextTokenizer reset(byte[] bytes, int offset, int len) {
+        this.bytes = bytes;
+        this.pos = offset;
+        this.end = offset + len;
+        this.start = offset;
+        this.length = 0;
+        this.tokenCount = 0;
+        this.emptyTokens = 0;
+        return this;
+    }
+
+    /**
+     * 移动到下一个单词
+     *
+     * @return 没有更多单词时返回false
+     */
+    public boolean next() {
+        // 跳过分隔符
+        int skipped = 0;
+        while (pos < end && isWhitespace(bytes[pos])) {
+            pos++;
+            skipped++;
+        }
+        if (pos >= end) {
+            length = 0;
+            return false;
+        }
+
+        // 第一个单词前的每个分隔符、以及单词之间多出来的分隔符, 都相当于一个空单词
+        emptyTokens += tokenCount == 0 ? skipped : skipped - 1;
+        tokenCount++;
+
+        // 扫描单词
+        start = pos;
+        while (pos < end && !isWhitespace(bytes[pos])) {
+            pos++;
+        }
+        length = pos - start;
+        return true;
+    }
+
+    /**
+     * 当前单词所在的字节数组(即Text.getBytes(), 不是拷贝)
+     *
+     * @return
+     */
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * 本行到目前为止切出的单词数
+     *
+     * @return
+     */
+    public int tokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * 本行到目前为止跳过的空单词数, 即按split(" ")语义会多出来的空字符串个数
+     *
+     * @return
+     */
+    public int emptyTokens() {
+        return emptyTokens;
+    }
+
+    /**
+     * 把当前单词拷贝到复用的Text中
+     *
+     * @param target
+     */
+    public void copyTo(Text target) {
+        target.set(bytes, start, length);
+    }
+
+    /**
+     * 当前单词中第一次出现b的下标(相对start), 不存在返回-1
+     *
+     * @param b
+     * @return
+     */
+    public int indexOf(byte b) {
+        for (int i = start, tokenEnd = start + length; i < tokenEnd; i++) {
+            if (bytes[i] == b) {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 把当前单词解析为十进制long, 不创建String
+     *
+     * @return
+     * @throws NumberFormatException 单词不是合法的十进制整数
+     */
+    public long parseLong() {
+        return parseLong(bytes, start, length);
+    }
+
+    /**
+     * 把当前单词解析为十进制int, 不创建String
+     *
+     * @return
+     * @throws NumberFormatException 单词不是合法的十进制整数或超出int范围
+     */
+    public int parseInt() {
+        long value = parseLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw newNumberFormatException(bytes, start, length);
+        }
+        return (int) value;
+    }
+
+    /**
+     * 把bytes[offset, offset + len)解析为十进制long
+     *
+     * @param bytes
+     * @param offset
+     * @param len
+     * @return
+     */
+    public static long parseLong(byte[] bytes, int offset, int len) {
+        if (len <= 0) {
+            throw new NumberFormatException("empty token");
+        }
+
+        int i = offset;
+        int end = offset + len;
+        boolean negative = false;
+        if (bytes[i] == '-' || bytes[i] == '+') {
+            negative = bytes[i] == '-';
+            if (++i == end) {
+                throw newNumberFormatException(bytes, offset, len);
+            }
+        }
+
+        // 按负数累加, 这样Long.MIN_VALUE也不会溢出
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long multiMin = limit / 10;
+        long result = 0;
+        for (; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9 || result < multiMin) {
+                throw newNumberFormatException(bytes, offset, len);
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw newNumberFormatException(bytes, offset, len);
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    private static NumberFormatException newNumberFormatException(byte[] bytes, int offset, int len) {
+        try {
+            return new NumberFormatException("For input string: \"" + Text.decode(bytes, offset, len, false) + "\"");
+        } catch (CharacterCodingException e) {
+            return new NumberFormatException("For input bytes at offset " + offset);
+        }
+    }
+}
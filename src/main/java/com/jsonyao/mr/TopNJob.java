@@ -1,21 +1,28 @@
 package com.jsonyao.mr;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.CounterGroup;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Arrays;
 
 /**
  * 求TopN：使用MapReduce程序从一批数据中计算出数值最大的前5个数字。
@@ -49,8 +56,22 @@ import java.util.concurrent.atomic.AtomicLong;
  */
 public class TopNJob {
 
+    private static final Logger logger = LoggerFactory.getLogger(TopNJob.class);
+
+    /**
+     * 各Reduce分区实际输出条数的计数器组, 计数器名为分区号
+     */
+    public static final String PARTITION_COUNTER_GROUP = "TopNPartition";
+
     /**
      * 组装Job = Map + Reduce
+     * <p>
+     * 参数：输入路径 输出路径 topN [Reduce任务数]
+     * <p>
+     * Reduce任务数大于1时为分布式模式：
+     * 1、抽样输入估计第N大的数, 把[最大值, 第N大的数]按样本等分成Reduce任务数 - 1个降序范围, 比第N大的数更小的key都进最后一个分区
+     * 2、TotalOrderPartitioner按降序范围分区, 分区0的key最大, 每个Reduce最多输出topN条并通过计数器上报条数
+     * 3、协调步骤按分区号从小到大累加计数器, 只取覆盖topN所需的分区：完整的分区直接rename, 只有最后一个分区需要读取并截断
      *
      * @param args
      */
@@ -59,21 +80,29 @@ public class TopNJob {
             System.exit(100);
         }
 
-        String fileInputPath = args[0];
-        String fileOutputPath = args[1];
-        String topN = args[2];
-
         try {
             Configuration conf = new Configuration();
+
+            // 解析命令行中, 通过-D传入的参数, 并添加到conf中
+            String[] remainingArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+            String fileInputPath = remainingArgs[0];
+            String fileOutputPath = remainingArgs[1];
+            String topN = remainingArgs[2];
+            int reduceTaskNum = remainingArgs.length > 3 ? Integer.parseInt(remainingArgs[3]) : 1;
+
             conf.set("topN", topN);
             Job job = Job.getInstance(conf);
             job.setJarByClass(TopNJob.class);// 必须设置, 否则提交到集群后, Job会找不到这个WordCountJob类的
 
+            // 分布式模式下, Job先输出到范围目录, 再由协调步骤汇总到输出目录
+            Path outputPath = new Path(fileOutputPath);
+            Path rangesPath = reduceTaskNum > 1 ? new Path(fileOutputPath + "_ranges") : outputPath;
+
             // 输入、输出
             FileInputFormat.setInputPaths(job, new Path(fileInputPath));
-            FileOutputFormat.setOutputPath(job, new Path(fileOutputPath));
+            FileOutputFormat.setOutputPath(job, rangesPath);
 
-            // Map
+            // Map：每个Map任务只输出本地的topN, shuffle数据量从O(输入)降为O(N * Map任务数)
             job.setMapperClass(TopNJobMapper.class);
             job.setMapOutputKeyClass(LongWritable.class);
             job.setMapOutputValueClass(NullWritable.class);
@@ -82,22 +111,232 @@ public class TopNJob {
             job.setReducerClass(TopNReducer.class);
             job.setOutputKeyClass(LongWritable.class);
             job.setOutputValueClass(NullWritable.class);
-            job.setNumReduceTasks(1);// 全局排序
+
+            // 降序排序：Reduce按从大到小的顺序收到key, 输出前topN条后即可结束
+            job.setSortComparatorClass(LongWritable.DecreasingComparator.class);
+
+            // 分布式模式：按抽样得到的降序范围分区
+            Path partitionPath = null;
+            if (reduceTaskNum > 1) {
+                partitionPath = new Path(fileOutputPath + "_partitions");
+                reduceTaskNum = writePartitionFile(job, partitionPath, Long.parseLong(topN), reduceTaskNum);
+                if (reduceTaskNum > 1) {
+                    TotalOrderPartitioner.setPartitionFile(job.getConfiguration(), partitionPath);
+                    job.setPartitionerClass(TotalOrderPartitioner.class);
+                }
+            }
+            job.setNumReduceTasks(reduceTaskNum);// 单个Reduce时即全局排序
 
             // 提交Job
-            job.waitForCompletion(true);
+            boolean success = job.waitForCompletion(true);
+
+            // 协调步骤：汇总覆盖topN的分区
+            if (rangesPath != outputPath) {
+                if (success) {
+                    collect(job, rangesPath, outputPath, reduceTaskNum);
+                }
+                rangesPath.getFileSystem(conf).delete(rangesPath, true);
+            }
+            if (partitionPath != null) {
+                partitionPath.getFileSystem(conf).delete(partitionPath, false);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * 抽样输入, 生成降序的分区边界并写入分区文件
+     * <p>
+     * 1、按抽样字节数占输入总字节数的比例, 估计第N大的数在样本中的排名m = topN * 抽样比例
+     * 2、把样本中最大的m个数等分为reduceTaskNum - 1段, 边界严格递减(与DecreasingComparator一致), 相同的数只取一次
+     * 3、不同的数不够时, 减少Reduce任务数
+     *
+     * @param job
+     * @param partitionPath
+     * @param topN
+     * @param reduceTaskNum
+     * @return 实际使用的Reduce任务数 = 边界数 + 1
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static int writePartitionFile(Job job, Path partitionPath, long topN, int reduceTaskNum)
+            throws IOException, InterruptedException {
+        // 抽样：按Mapper相同的解析逻辑, 每个数字都是一个样本
+        TextTokenizer tokenizer = new TextTokenizer();
+        long[][] samples = {new long[1024]};
+        int[] sampleNum = {0};
+        long[] sampledBytes = {0L};
+        SplitSampler.sample(job, line -> {
+            sampledBytes[0] += line.getLength() + 1;
+            tokenizer.reset(line);
+            while (tokenizer.next()) {
+                if (sampleNum[0] == samples[0].length) {
+                    samples[0] = Arrays.copyOf(samples[0], samples[0].length << 1);
+                }
+                samples[0][sampleNum[0]++] = tokenizer.parseLong();
+            }
+        });
+        long[] sorted = samples[0];
+        int n = sampleNum[0];
+        Arrays.sort(sorted, 0, n);
+
+        // 估计第N大的数在样本中的排名
+        long inputBytes = 0L;
+        for (Path path : FileInputFormat.getInputPaths(job)) {
+            inputBytes += path.getFileSystem(job.getConfiguration()).getContentSummary(path).getLength();
+        }
+        double fraction = inputBytes > 0 ? Math.min(1.0, sampledBytes[0] / (double) inputBytes) : 1.0;
+        int m = (int) Math.max(Math.min(n, reduceTaskNum - 1), Math.min(n, Math.ceil(topN * fraction)));
+
+        // 从大到小等距选取边界, 跳过与上一个边界相同的样本
+        int segments = reduceTaskNum - 1;
+        long[] splitPoints = new long[segments];
+        int splitNum = 0;
+        int last = -1;
+        for (int i = 1; i <= segments && m > 0; i++) {
+            int rank = Math.max(last + 1, Math.min(m - 1, (int) Math.round((double) m * i / segments) - 1));
+            while (last >= 0 && rank < n && sorted[n - 1 - rank] == sorted[n - 1 - last]) {
+                rank++;
+            }
+            if (rank >= n) {
+                break;
+            }
+            splitPoints[splitNum++] = sorted[n - 1 - rank];
+            last = rank;
+        }
+        if (splitNum + 1 < reduceTaskNum) {
+            logger.warn("only {} distinct split points in {} samples, reduce tasks {} -> {}",
+                    splitNum, n, reduceTaskNum, splitNum + 1);
+        }
+        if (splitNum == 0) {
+            return 1;
+        }
+
+        // 写入分区文件：<LongWritable, NullWritable>
+        LongWritable key = new LongWritable();
+        SequenceFile.Writer writer = SequenceFile.createWriter(job.getConfiguration(),
+                SequenceFile.Writer.file(partitionPath),
+                SequenceFile.Writer.keyClass(LongWritable.class),
+                SequenceFile.Writer.valueClass(NullWritable.class));
+        try {
+            for (int i = 0; i < splitNum; i++) {
+                key.set(splitPoints[i]);
+                writer.append(key, NullWritable.get());
+            }
+        } finally {
+            writer.close();
+        }
+
+        logger.info("wrote {} split points (estimated top-{} rank {} of {} samples) to {}",
+                splitNum, topN, m, n, partitionPath);
+        return splitNum + 1;
+    }
+
+    /**
+     * 协调步骤：按分区号从小到大(key从大到小)累加各分区的输出条数, 直到覆盖topN
+     * <p>
+     * 1、完整需要的分区直接rename到输出目录, 只是NameNode的元数据操作, 不读取数据
+     * 2、最后一个分区只需要其中一部分时, 读取并截断为剩余条数(topN.include.ties=true时保留与最后一条相同的数)
+     * 3、其余分区不再读取
+     *
+     * @param job
+     * @param rangesPath
+     * @param outputPath
+     * @param reduceTaskNum
+     * @throws IOException
+     */
+    static void collect(Job job, Path rangesPath, Path outputPath, int reduceTaskNum) throws IOException {
+        Configuration conf = job.getConfiguration();
+        long remaining = conf.getLong("topN", 5);
+        boolean includeTies = conf.getBoolean("topN.include.ties", false);
+        CounterGroup group = job.getCounters().getGroup(PARTITION_COUNTER_GROUP);
+
+        FileSystem fs = outputPath.getFileSystem(conf);
+        fs.mkdirs(outputPath);
+        int used = 0;
+        for (int partition = 0; partition < reduceTaskNum && remaining > 0; partition++) {
+            long written = group.findCounter(String.valueOf(partition)).getValue();
+            String name = String.format("part-r-%05d", partition);
+            Path source = new Path(rangesPath, name);
+            Path target = new Path(outputPath, name);
+            if (written <= remaining) {
+                if (!fs.rename(source, target)) {
+                    throw new IOException("failed to rename " + source + " to " + target);
+                }
+            } else {
+                truncateLines(fs, source, target, remaining, includeTies);
+            }
+            remaining -= written;
+            used++;
+        }
+
+        // 与FileOutputCommitter一致, 写入成功标记
+        fs.create(new Path(outputPath, "_SUCCESS"), true).close();
+        logger.info("top-N covered by {} of {} partitions", used, reduceTaskNum);
+    }
+
+    /**
+     * 复制source的前limit行到target, includeTies时继续复制与第limit行相同的行
+     */
+    private static void truncateLines(FileSystem fs, Path source, Path target, long limit, boolean includeTies)
+            throws IOException {
+        Text line = new Text();
+        Text lastLine = new Text();
+        try (FSDataInputStream in = fs.open(source); FSDataOutputStream out = fs.create(target, true)) {
+            LineReader reader = new LineReader(in, fs.getConf());
+            long copied = 0L;
+            while (reader.readLine(line) > 0) {
+                if (copied >= limit && !(includeTies && line.equals(lastLine))) {
+                    break;
+                }
+                out.write(line.getBytes(), 0, line.getLength());
+                out.write('\n');
+                lastLine.set(line);
+                copied++;
+            }
+        }
+    }
 }
 
 class TopNJobMapper extends Mapper<LongWritable, Text, LongWritable, NullWritable> {
 
     private static final Logger logger = LoggerFactory.getLogger(TopNJobMapper.class);
 
+    // 复用的分词器、k2
+    private final TextTokenizer tokenizer = new TextTokenizer();
+    private final LongWritable k2 = new LongWritable();
+
+    // 本Map任务的topN：小顶堆, 堆顶为当前第N大的数
+    private LongMinHeap heap;
+
+    // topN.include.ties=true时, 堆满后与堆顶相等、未能入堆的数的个数; 堆顶变大时清零
+    private boolean includeTies;
+    private long ties;
+
+    // 埋点：计数器 + 采样日志 + 阶段耗时
+    private TaskMetrics metrics;
+
     /**
-     * Map函数：<k1, v1> => <k2, v2>
+     * run(..)运行前
+     *
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+        super.setup(context);
+        this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.MAP);
+
+        long topN = context.getConfiguration().getLong("topN", 5);
+        // 堆数组按需扩容, topN很大时也不会在读取数据前预先分配
+        this.heap = new LongMinHeap((int) Math.min(topN, Integer.MAX_VALUE - 8));
+        this.includeTies = context.getConfiguration().getBoolean("topN.include.ties", false);
+    }
+
+    /**
+     * Map函数：<k1, v1> => 入堆, 不直接输出
      *
      * @param k1
      * @param v1
@@ -107,27 +346,87 @@ class TopNJobMapper extends Mapper<LongWritable, Text, LongWritable, NullWritabl
      */
     @Override
     protected void map(LongWritable k1, Text v1, Context context) throws IOException, InterruptedException {
-        logger.info("<k1, v1> = <{}, {}>", k1.get(), v1);
+        metrics.record(v1.getLength(), context);
+        if (metrics.sample()) {
+            logger.debug("<k1, v1> = <{}, {}>", k1, v1);
+        }
+
+        // 切割字符串：直接扫描UTF-8字节, 连续的空白字符视为一个分隔符
+        tokenizer.reset(v1);
+
+        // 只保留本Map任务最大的topN个数
+        while (tokenizer.next()) {
+            offer(tokenizer.parseLong());
+        }
+        metrics.tokens(tokenizer);
+    }
+
+    /**
+     * 入堆; includeTies时记录与第N大的数并列的数, 否则Reduce看不到它们
+     */
+    private void offer(long value) {
+        if (!includeTies || heap.size() < heap.capacity() || heap.isEmpty()) {
+            heap.offer(value);
+            return;
+        }
 
-        // 切割字符串
-        String[] words = v1.toString().split(" ");
+        long threshold = heap.peek();
+        if (heap.offer(value)) {
+            // 被挤出的旧堆顶与新堆顶相等时仍是并列, 否则之前的并列都已不在topN内
+            ties = heap.peek() == threshold ? ties + 1 : 0L;
+        } else if (value == threshold) {
+            ties++;
+        }
+    }
 
-        // <k1, v1> => <k2, v2>
-        for (String word : words) {
-            LongWritable k2 = new LongWritable(Long.parseLong(word));
-            NullWritable v2 = NullWritable.get();
+    /**
+     * run(..)运行后: 输出本Map任务的topN, <num, null>; includeTies时再输出ties个与堆顶相等的数
+     *
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+        NullWritable v2 = NullWritable.get();
+        for (int i = 0; i < heap.size(); i++) {
+            k2.set(heap.get(i));
             context.write(k2, v2);
         }
+        if (ties > 0) {
+            k2.set(heap.peek());
+            for (long i = 0; i < ties; i++) {
+                context.write(k2, v2);
+            }
+        }
+
+        metrics.finish(context);
+        super.cleanup(context);
     }
 }
 
+/**
+ * 依赖Job设置的降序排序(LongWritable.DecreasingComparator)：key从大到小到达, 输出前topN条后立即结束
+ * <p>
+ * 1、重复值按条数计算, 默认恰好输出topN条
+ * 2、-DtopN.include.ties=true 时, 第N条所在的key的所有重复值都会输出(并列第N名全部保留), Map端也会保留与本地第N大的数并列的数
+ * 3、不缓存任何key, 直接输出框架传入的k2, 每个key不创建对象
+ * 4、分布式模式下每个分区各自最多输出topN条, 条数通过计数器上报给协调步骤
+ *
+ * @author yaocs2
+ * @since 2022-08-16
+ */
 class TopNReducer extends Reducer<LongWritable, NullWritable, LongWritable, NullWritable> {
 
     private static final Logger logger = LoggerFactory.getLogger(TopNReducer.class);
 
-    private long topN;
-    private AtomicLong counter;
-    private ConcurrentLinkedDeque<Object[]> deque;
+    // 还需要输出的条数、本分区已输出的条数
+    private long remaining;
+    private long written;
+    private boolean includeTies;
+
+    // 埋点：计数器 + 采样日志 + 阶段耗时
+    private TaskMetrics metrics;
 
     /**
      * run(..)运行前
@@ -138,59 +437,63 @@ class TopNReducer extends Reducer<LongWritable, NullWritable, LongWritable, Null
      */
     @Override
     protected void setup(Context context) throws IOException, InterruptedException {
-        logger.info("run(..) before...");
         super.setup(context);
+        this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.REDUCE);
 
-        this.topN = context.getConfiguration().getLong("topN", 5);
-        this.counter = new AtomicLong(0);
-        this.deque = new ConcurrentLinkedDeque<>();
+        this.remaining = context.getConfiguration().getLong("topN", 5);
+        this.includeTies = context.getConfiguration().getBoolean("topN.include.ties", false);
     }
 
     /**
-     * topN入队
+     * 输出满topN条后不再读取剩余的key
      *
-     * @param k2
-     * @param v2s
      * @param context
      * @throws IOException
      * @throws InterruptedException
      */
     @Override
-    protected void reduce(LongWritable k2, Iterable<NullWritable> v2s, Context context) throws IOException, InterruptedException {
-        long size = getSize(v2s);
-        logger.info("reduce: <k2, v2s#size> = <{}, {}>", k2.toString(), size);
-
-        // 大于等于topN, 则从左先出队：以减少内存占用, 但最后一个入队时, 如果有重复, 那么要输出的实际个数, 可能会多于topN
-        while (counter.get() >= topN && !deque.isEmpty()) {
-            Object[] objects = deque.pollFirst();
-            long key = (long) objects[0];
-            long value = (long) objects[1];
-
-            logger.info("reduce pollFirst deque: <key, value> = <{}, {}>", key, value);
-            counter.addAndGet(-value);
+    public void run(Context context) throws IOException, InterruptedException {
+        setup(context);
+        try {
+            while (remaining > 0 && context.nextKey()) {
+                reduce(context.getCurrentKey(), context.getValues(), context);
+            }
+        } finally {
+            cleanup(context);
         }
-
-        // 再入队
-        logger.info("reduce offerLast deque: <k2, v2s#size> = <{}, {}>", k2.toString(), size);
-        deque.offerLast(new Object[]{k2.get(), size});
-        counter.addAndGet(size);
     }
 
     /**
-     * 获取值列表长度
+     * <k2, {null,...}> => 每个值输出一条<k3, null>, 直到满topN条
      *
+     * @param k2
      * @param v2s
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
      */
-    private long getSize(Iterable<NullWritable> v2s) {
-        long size = 0;
+    @Override
+    protected void reduce(LongWritable k2, Iterable<NullWritable> v2s, Context context) throws IOException, InterruptedException {
+        NullWritable v3 = NullWritable.get();
+        long count = 0;
         for (NullWritable v2 : v2s) {
-            size++;
+            if (remaining <= 0 && !includeTies) {
+                break;
+            }
+            context.write(k2, v3);
+            remaining--;
+            count++;
+        }
+        written += count;
+
+        metrics.group(count, context);
+        if (metrics.sample()) {
+            logger.debug("reduce: <k2, count> = <{}, {}>", k2, count);
         }
-        return size;
     }
 
     /**
-     * run(..)运行后: <k2, {null,...}> => <k3, null>
+     * run(..)运行后: 按分区号上报本分区输出的条数, 供协调步骤使用; 汇总埋点
      *
      * @param context
      * @throws IOException
@@ -198,26 +501,9 @@ class TopNReducer extends Reducer<LongWritable, NullWritable, LongWritable, Null
      */
     @Override
     protected void cleanup(Context context) throws IOException, InterruptedException {
-        logger.info("run(..) after: <k2, {null,...}> => <k3, null>...");
+        int partition = context.getTaskAttemptID().getTaskID().getId();
+        context.getCounter(TopNJob.PARTITION_COUNTER_GROUP, String.valueOf(partition)).increment(written);
+        metrics.finish(context);
         super.cleanup(context);
-
-        // 从右往左出队, 同时对输出元素限制topN个, 保证结果的正确性
-        long rest = this.topN;
-        while (!deque.isEmpty() && rest > 0) {
-            Object[] objects = deque.pollLast();
-            long key = (long) objects[0];
-            long value = (long) objects[1];
-
-            for (int i = 0; i < value; i++) {
-                logger.info("cleanup: <k2, v2> = <{}, {}>", key, value);
-
-                LongWritable k3 = new LongWritable(key);
-                NullWritable v3 = NullWritable.get();
-
-                logger.info("cleanup: <k3, v3> = <{}, {}>", k3.toString(), v3.toString());
-                context.write(k3, v3);
-                rest--;
-            }
-        }
     }
 }
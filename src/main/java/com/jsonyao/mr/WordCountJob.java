@@ -9,6 +9,7 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,11 +42,14 @@ public class WordCountJob {
             System.exit(100);
         }
 
-        String fileInputPath = args[0];
-        String fileOutputPath = args[1];
-
         try {
             Configuration conf = new Configuration();
+
+            // 解析命令行中, 通过-D传入的参数(如-Dwordcount.inmapper.enabled=true), 并添加到conf中
+            String[] remainingArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+            String fileInputPath = remainingArgs[0];
+            String fileOutputPath = remainingArgs[1];
+
             Job job = Job.getInstance(conf);
             job.setJarByClass(WordCountJob.class);// 必须设置, 否则提交到集群后, Job会找不到这个WordCountJob类的
 
@@ -65,6 +69,9 @@ public class WordCountJob {
 
             // 提交Job
             job.waitForCompletion(true);
+
+            // 输出Map端聚合效果
+            InMapperCombiner.report(job);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -80,6 +87,31 @@ public class WordCountJob {
 
         private static final Logger logger = LoggerFactory.getLogger(MyMapper.class);
 
+        // 埋点：计数器 + 采样日志 + 阶段耗时
+        private TaskMetrics metrics;
+
+        // 复用的分词器、k2、v2：每个Map任务只创建一次, 避免每个单词都创建对象
+        private final TextTokenizer tokenizer = new TextTokenizer();
+        private final Text k2 = new Text();
+        private final LongWritable v2 = new LongWritable(1L);
+
+        // Map端聚合器, 未开启时为null
+        private InMapperCombiner combiner;
+
+        /**
+         * run(..)运行前
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            this.combiner = InMapperCombiner.create(context.getConfiguration());
+            this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.MAP);
+        }
+
         /**
          * Map函数：<k1, v1> => <k2, v2>
          *
@@ -91,17 +123,41 @@ public class WordCountJob {
          */
         @Override
         protected void map(LongWritable k1, Text v1, Context context) throws IOException, InterruptedException {
-            logger.info(String.format("<k1, v1> = <%s, %s>", k1.get(), v1));
+            metrics.record(v1.getLength(), context);
+            if (metrics.sample()) {
+                logger.debug("<k1, v1> = <{}, {}>", k1, v1);
+            }
 
-            // 切割字符串
-            String[] words = v1.toString().split(" ");
+            // 切割字符串：直接扫描UTF-8字节, 连续的空白字符视为一个分隔符
+            tokenizer.reset(v1);
 
             // <k1, v1> => <k2, v2>
-            for (String word : words) {
-                Text k2 = new Text(word);
-                LongWritable v2 = new LongWritable(1L);
+            while (tokenizer.next()) {
+                if (combiner != null) {
+                    combiner.add(tokenizer.bytes(), tokenizer.start(), tokenizer.length(), 1L, context);
+                    continue;
+                }
+
+                tokenizer.copyTo(k2);
                 context.write(k2, v2);
             }
+            metrics.tokens(tokenizer);
+        }
+
+        /**
+         * run(..)运行后: 输出Map端聚合剩余的部分计数, 并汇总埋点
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (combiner != null) {
+                combiner.close(context);
+            }
+            metrics.finish(context);
+            super.cleanup(context);
         }
     }
 
@@ -115,6 +171,25 @@ public class WordCountJob {
 
         private static final Logger logger = LoggerFactory.getLogger(MyReducer.class);
 
+        // 复用的v3
+        private final LongWritable v3 = new LongWritable();
+
+        // 埋点：计数器 + 采样日志 + 阶段耗时
+        private TaskMetrics metrics;
+
+        /**
+         * run(..)运行前
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.REDUCE);
+        }
+
         /**
          * Reduce函数：<k2, {v2,..}> => <k3, v3>
          *
@@ -128,16 +203,33 @@ public class WordCountJob {
         protected void reduce(Text k2, Iterable<LongWritable> v2s, Context context) throws IOException, InterruptedException {
             // 累加所有次数
             long sum = 0L;
+            long count = 0L;
             for (LongWritable v2 : v2s) {
-                logger.info(String.format("<k2, v2> = <%s, %s>", k2.toString(), v2));
                 sum += v2.get();
+                count++;
             }
+            metrics.group(count, context);
 
             // <k2, {v2,..}> => <k3, v3>
             Text k3 = k2;
-            LongWritable v3 = new LongWritable(sum);
-            logger.info(String.format("<k1, v1> = <%s, %s>", k3.toString(), v3));
+            v3.set(sum);
+            if (metrics.sample()) {
+                logger.debug("<k3, v3> = <{}, {}>", k3, v3);
+            }
             context.write(k3, v3);
         }
+
+        /**
+         * run(..)运行后: 汇总埋点
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            metrics.finish(context);
+            super.cleanup(context);
+        }
     }
 }
@@ -0,0 +1,472 @@
+package com.jsonyao.mr;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 数据倾斜-解决方案3：自动识别倾斜key并打散, 再自动二次聚合
+ * <p>
+ * 1、抽样：在Driver端抽样输入切片, 统计单词频率, 找出占比超过一个Reduce平均负载的热点key
+ * 2、打散：第一个Job只对热点key加盐, 盐的个数(fan-out)按其估算占比计算, 其它key保持不变
+ * 3、聚合：第二个Job自动去盐并再次累加, 两个Job之间使用二进制SequenceFile, 不再解析文本
+ * <p>
+ * 热点key格式：单词 + 0x00 + 盐(十进制), 去盐时只处理前缀确实是热点key的单词
+ * <p>
+ * 可选参数：
+ * -Dskew.hot.key.min.share  热点key的最小占比, 默认为1/Reduce个数
+ * -Dskew.hot.key.min.count  热点key在抽样中的最少出现次数, 默认100
+ * -Dskew.hot.keys.max       最多打散的热点key个数, 默认64
+ *
+ * @author yaocs2
+ * @since 2022-08-22
+ */
+public class WordCountJobSkewAuto {
+
+    private static final Logger logger = LoggerFactory.getLogger(WordCountJobSkewAuto.class);
+
+    public static final String HOT_KEYS = "skew.hot.keys";
+    public static final String HOT_KEY_MIN_SHARE = "skew.hot.key.min.share";
+    public static final String HOT_KEY_MIN_COUNT = "skew.hot.key.min.count";
+    public static final String HOT_KEYS_MAX = "skew.hot.keys.max";
+
+    /**
+     * 盐与单词之间的分隔符
+     */
+    static final byte SALT_SEPARATOR = 0;
+
+    /**
+     * 打散相关计数器
+     */
+    public enum Counter {
+        // 第一个Job中被加盐的单词数
+        SALTED_TOKENS,
+        // 第二个Job中被去盐的记录数
+        UNSALTED_RECORDS
+    }
+
+    /**
+     * 组装Job = 抽样 + Job1(打散聚合) + Job2(去盐聚合)
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.exit(100);
+        }
+
+        try {
+            Configuration conf = new Configuration();
+
+            // 解析命令行中, 通过-D传入的参数, 并添加到conf中
+            String[] remainingArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+            Path inputPath = new Path(remainingArgs[0]);
+            Path outputPath = new Path(remainingArgs[1]);
+            Path saltedPath = new Path(remainingArgs[1] + "_salted");
+            int reduceTaskNum = Integer.parseInt(remainingArgs[2]);
+
+            // Job1：打散热点key, 输出二进制SequenceFile
+            Job saltJob = Job.getInstance(conf, "WordCountJobSkewAuto-salt");
+            saltJob.setJarByClass(WordCountJobSkewAuto.class);// 必须设置, 否则提交到集群后, Job会找不到这个WordCountJob类的
+            FileInputFormat.setInputPaths(saltJob, inputPath);
+            FileOutputFormat.setOutputPath(saltJob, saltedPath);
+            saltJob.setOutputFormatClass(SequenceFileOutputFormat.class);
+
+            // 抽样找出热点key, 写入Job1的conf中
+            Map<Text, Integer> hotKeys = sampleHotKeys(saltJob, reduceTaskNum);
+            setHotKeys(saltJob.getConfiguration(), hotKeys);
+
+            saltJob.setMapperClass(SaltMapper.class);
+            saltJob.setMapOutputKeyClass(Text.class);
+            saltJob.setMapOutputValueClass(LongWritable.class);
+            saltJob.setCombinerClass(SumCombiner.class);
+            saltJob.setReducerClass(WordCountJob.MyReducer.class);
+            saltJob.setOutputKeyClass(Text.class);
+            saltJob.setOutputValueClass(LongWritable.class);
+            saltJob.setNumReduceTasks(reduceTaskNum);
+            if (!saltJob.waitForCompletion(true)) {
+                System.exit(1);
+            }
+
+            // Job2：去盐后再次聚合
+            Job mergeJob = Job.getInstance(conf, "WordCountJobSkewAuto-merge");
+            mergeJob.setJarByClass(WordCountJobSkewAuto.class);
+            setHotKeys(mergeJob.getConfiguration(), hotKeys);
+            FileInputFormat.setInputPaths(mergeJob, saltedPath);
+            FileOutputFormat.setOutputPath(mergeJob, outputPath);
+            mergeJob.setInputFormatClass(SequenceFileInputFormat.class);
+
+            mergeJob.setMapperClass(UnsaltMapper.class);
+            mergeJob.setMapOutputKeyClass(Text.class);
+            mergeJob.setMapOutputValueClass(LongWritable.class);
+            mergeJob.setCombinerClass(SumCombiner.class);
+            mergeJob.setReducerClass(WordCountJob.MyReducer.class);
+            mergeJob.setOutputKeyClass(Text.class);
+            mergeJob.setOutputValueClass(LongWritable.class);
+            mergeJob.setNumReduceTasks(reduceTaskNum);
+            if (!mergeJob.waitForCompletion(true)) {
+                System.exit(1);
+            }
+
+            // 删除中间结果
+            FileSystem.get(conf).delete(saltedPath, true);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 抽样统计单词频率, 找出热点key及其fan-out
+     * <p>
+     * 占比share的key分到ceil(share * reduceTaskNum)个盐上, 使每个盐的负载接近一个Reduce的平均负载
+     *
+     * @param job
+     * @param reduceTaskNum
+     * @return 热点key => fan-out
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static Map<Text, Integer> sampleHotKeys(Job job, int reduceTaskNum) throws IOException, InterruptedException {
+        Map<Text, Integer> hotKeys = new HashMap<>();
+        if (reduceTaskNum <= 1) {
+            return hotKeys;
+        }
+
+        // 抽样统计单词频率
+        final Map<Text, long[]> counts = new HashMap<>();
+        final Text probe = new Text();
+        final TextTokenizer tokenizer = new TextTokenizer();
+        final long[] total = new long[1];
+        SplitSampler.sample(job, line -> {
+            tokenizer.reset(line);
+            while (tokenizer.next()) {
+                tokenizer.copyTo(probe);
+                long[] count = counts.get(probe);
+                if (count == null) {
+                    count = new long[1];
+                    counts.put(new Text(probe), count);
+                }
+                count[0]++;
+                total[0]++;
+            }
+        });
+        if (total[0] == 0) {
+            return hotKeys;
+        }
+
+        // 筛选热点key：按次数从大到小, 最多取HOT_KEYS_MAX个
+        Configuration conf = job.getConfiguration();
+        double minShare = conf.getDouble(HOT_KEY_MIN_SHARE, 1.0 / reduceTaskNum);
+        long minCount = conf.getLong(HOT_KEY_MIN_COUNT, 100L);
+        int maxHotKeys = conf.getInt(HOT_KEYS_MAX, 64);
+
+        List<Map.Entry<Text, long[]>> candidates = new ArrayList<>();
+        for (Map.Entry<Text, long[]> entry : counts.entrySet()) {
+            long count = entry.getValue()[0];
+            if (count >= minCount && (double) count / total[0] >= minShare) {
+                candidates.add(entry);
+            }
+        }
+        candidates.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+
+        for (int i = 0; i < candidates.size() && i < maxHotKeys; i++) {
+            Map.Entry<Text, long[]> entry = candidates.get(i);
+            double share = (double) entry.getValue()[0] / total[0];
+            int fanout = (int) Math.min(reduceTaskNum, Math.max(2L, (long) Math.ceil(share * reduceTaskNum)));
+            hotKeys.put(entry.getKey(), fanout);
+            logger.info("hot key: <{}, share = {}, fanout = {}>", entry.getKey(), String.format("%.4f", share), fanout);
+        }
+        return hotKeys;
+    }
+
+    /**
+     * 把热点key写入conf：Base64(单词):fan-out, 避免单词中的逗号等字符破坏格式
+     *
+     * @param conf
+     * @param hotKeys
+     */
+    static void setHotKeys(Configuration conf, Map<Text, Integer> hotKeys) {
+        List<String> encoded = new ArrayList<>(hotKeys.size());
+        for (Map.Entry<Text, Integer> entry : hotKeys.entrySet()) {
+            byte[] word = Arrays.copyOf(entry.getKey().getBytes(), entry.getKey().getLength());
+            encoded.add(Base64.getEncoder().encodeToString(word) + ":" + entry.getValue());
+        }
+        conf.setStrings(HOT_KEYS, encoded.toArray(new String[0]));
+    }
+
+    /**
+     * 从conf读取热点key：单词字节 => fan-out
+     *
+     * @param conf
+     * @return
+     */
+    static ByteLongHashMap getHotKeys(Configuration conf) {
+        String[] encoded = conf.getTrimmedStrings(HOT_KEYS);
+        ByteLongHashMap hotKeys = new ByteLongHashMap(Math.max(1, encoded.length), 1024 * 1024);
+        for (String item : encoded) {
+            int colon = item.lastIndexOf(':');
+            byte[] word = Base64.getDecoder().decode(item.substring(0, colon));
+            hotKeys.add(word, 0, word.length, Long.parseLong(item.substring(colon + 1)));
+        }
+        return hotKeys;
+    }
+
+    /**
+     * Job1 Map阶段：切分单词, 只对热点key加盐
+     *
+     * @author yaocs2
+     * @since 2022-08-22
+     */
+    public static class SaltMapper extends Mapper<LongWritable, Text, Text, LongWritable> {
+
+        private static final Logger logger = LoggerFactory.getLogger(SaltMapper.class);
+
+        // 埋点：计数器 + 采样日志 + 阶段耗时
+        private TaskMetrics metrics;
+
+        // 复用的分词器、k2、v2
+        private final TextTokenizer tokenizer = new TextTokenizer();
+        private final Text k2 = new Text();
+        private final LongWritable v2 = new LongWritable(1L);
+
+        // 热点key => fan-out
+        private ByteLongHashMap hotKeys;
+
+        // 加盐后的key缓冲区, 以及轮询使用的盐
+        private byte[] saltedKey = new byte[64];
+        private long saltSeq;
+        private long saltedTokens;
+
+        // Map端聚合器, 未开启时为null
+        private InMapperCombiner combiner;
+
+        /**
+         * run(..)运行前
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            this.hotKeys = getHotKeys(context.getConfiguration());
+            this.combiner = InMapperCombiner.create(context.getConfiguration());
+            this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.MAP);
+        }
+
+        /**
+         * Map函数：<k1, v1> => <单词 或 单词+0x00+盐, 1>
+         *
+         * @param k1      每行数据的行首偏移量
+         * @param v1      每行的数据内容
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void map(LongWritable k1, Text v1, Context context) throws IOException, InterruptedException {
+            metrics.record(v1.getLength(), context);
+            if (metrics.sample()) {
+                logger.debug("<k1, v1> = <{}, {}>", k1, v1);
+            }
+
+            tokenizer.reset(v1);
+            while (tokenizer.next()) {
+                byte[] bytes = tokenizer.bytes();
+                int start = tokenizer.start();
+                int length = tokenizer.length();
+
+                // 热点key：轮询加盐, 使同一个key均匀分散到fan-out个盐上
+                long fanout = hotKeys.get(bytes, start, length, 0L);
+                if (fanout > 1) {
+                    length = salt(bytes, start, length, (int) (saltSeq++ % fanout));
+                    bytes = saltedKey;
+                    start = 0;
+                    saltedTokens++;
+                }
+
+                if (combiner != null) {
+                    combiner.add(bytes, start, length, 1L, context);
+                    continue;
+                }
+
+                k2.set(bytes, start, length);
+                context.write(k2, v2);
+            }
+            metrics.tokens(tokenizer);
+        }
+
+        /**
+         * run(..)运行后: 输出Map端聚合剩余的部分计数, 并汇总埋点
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (combiner != null) {
+                combiner.close(context);
+            }
+            context.getCounter(Counter.SALTED_TOKENS).increment(saltedTokens);
+            metrics.finish(context);
+            super.cleanup(context);
+        }
+
+        /**
+         * 在saltedKey中拼接：单词 + 0x00 + 盐
+         *
+         * @return 加盐后的长度
+         */
+        private int salt(byte[] bytes, int start, int length, int salt) {
+            int required = length + 12;
+            if (saltedKey.length < required) {
+                saltedKey = new byte[Math.max(required, saltedKey.length << 1)];
+            }
+
+            System.arraycopy(bytes, start, saltedKey, 0, length);
+            int pos = length;
+            saltedKey[pos++] = SALT_SEPARATOR;
+
+            // 盐为非负int, 按十进制写入
+            int digits = 1;
+            for (int n = salt / 10; n > 0; n /= 10) {
+                digits++;
+            }
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                saltedKey[i] = (byte) ('0' + salt % 10);
+                salt /= 10;
+            }
+            return pos + digits;
+        }
+    }
+
+    /**
+     * Combine阶段：只累加部分和, 不使用WordCountJob.MyReducer, 避免它的Reduce埋点(计数器、耗时)在Map端的combine中也被累加
+     *
+     * @author yaocs2
+     * @since 2022-08-24
+     */
+    public static class SumCombiner extends Reducer<Text, LongWritable, Text, LongWritable> {
+
+        // 复用的部分和
+        private final LongWritable sum = new LongWritable();
+
+        @Override
+        protected void reduce(Text key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long total = 0L;
+            for (LongWritable value : values) {
+                total += value.get();
+            }
+            sum.set(total);
+            context.write(key, sum);
+        }
+    }
+
+    /**
+     * Job2 Map阶段：读取Job1输出的SequenceFile, 去掉热点key的盐
+     *
+     * @author yaocs2
+     * @since 2022-08-22
+     */
+    public static class UnsaltMapper extends Mapper<Text, LongWritable, Text, LongWritable> {
+
+        private static final Logger logger = LoggerFactory.getLogger(UnsaltMapper.class);
+
+        // 埋点：计数器 + 采样日志 + 阶段耗时
+        private TaskMetrics metrics;
+
+        // 复用的k2
+        private final Text k2 = new Text();
+
+        // 热点key => fan-out
+        private ByteLongHashMap hotKeys;
+        private long unsaltedRecords;
+
+        /**
+         * run(..)运行前
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            this.hotKeys = getHotKeys(context.getConfiguration());
+            this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.MAP);
+        }
+
+        /**
+         * Map函数：<单词+0x00+盐, 部分和> => <单词, 部分和>
+         *
+         * @param k1      Job1输出的单词(可能带盐)
+         * @param v1      Job1输出的部分和
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void map(Text k1, LongWritable v1, Context context) throws IOException, InterruptedException {
+            metrics.record(k1.getLength(), context);
+            if (metrics.sample()) {
+                logger.debug("<k1, v1> = <{}, {}>", k1, v1);
+            }
+
+            byte[] bytes = k1.getBytes();
+            int separator = lastIndexOf(bytes, k1.getLength(), SALT_SEPARATOR);
+            if (separator >= 0 && hotKeys.get(bytes, 0, separator, 0L) > 1) {
+                k2.set(bytes, 0, separator);
+                context.write(k2, v1);
+                unsaltedRecords++;
+                return;
+            }
+
+            context.write(k1, v1);
+        }
+
+        /**
+         * run(..)运行后: 汇总埋点
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            context.getCounter(Counter.UNSALTED_RECORDS).increment(unsaltedRecords);
+            metrics.finish(context);
+            super.cleanup(context);
+        }
+
+        private static int lastIndexOf(byte[] bytes, int length, byte b) {
+            for (int i = length - 1; i >= 0; i--) {
+                if (bytes[i] == b) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -77,6 +77,30 @@ public class WordCountJobSkewRandomKey {
 
         private static final Logger logger = LoggerFactory.getLogger(MyMapper.class);
 
+        // 埋点：计数器 + 采样日志 + 阶段耗时
+        private TaskMetrics metrics;
+
+        // 复用的分词器、k2、v2：每个Map任务只创建一次, 避免每个单词都创建对象
+        private final TextTokenizer tokenizer = new TextTokenizer();
+        private final Text k2 = new Text();
+        private final LongWritable v2 = new LongWritable(1L);
+
+        // 打散后的倾斜key：5_?, 最后一位为随机数
+        private final byte[] saltedKey = {'5', '_', '0'};
+
+        /**
+         * run(..)运行前
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.MAP);
+        }
+
         /**
          * Map函数：<k1, v1> => <k2, v2>
          *
@@ -88,22 +112,41 @@ public class WordCountJobSkewRandomKey {
          */
         @Override
         protected void map(LongWritable k1, Text v1, Context context) throws IOException, InterruptedException {
-            logger.info(String.format("<k1, v1> = <%s, %s>", k1.get(), v1));
+            metrics.record(v1.getLength(), context);
+            if (metrics.sample()) {
+                logger.debug("<k1, v1> = <{}, {}>", k1, v1);
+            }
 
-            // 切割字符串
-            String[] words = v1.toString().split(" ");
+            // 切割字符串：只取每行的第一个单词, 空行直接跳过
+            if (!tokenizer.reset(v1).next()) {
+                return;
+            }
+            metrics.tokens(tokenizer);
 
             // 打散倾斜数据: 这里是假设, 已经抽样知道了5这个key倾斜最严重
-            String key = words[0];
-            if("5".equals(key)) {
-                key = "5" + "_" + ThreadLocalRandom.current().nextInt(10);
+            if (tokenizer.length() == 1 && tokenizer.bytes()[tokenizer.start()] == '5') {
+                saltedKey[2] = (byte) ('0' + ThreadLocalRandom.current().nextInt(10));
+                k2.set(saltedKey, 0, saltedKey.length);
+            } else {
+                tokenizer.copyTo(k2);
             }
 
-            // <k1, v1> => <k2, v2>：只取每行的第一个单词
-            Text k2 = new Text(key);
-            LongWritable v2 = new LongWritable(1L);
+            // <k1, v1> => <k2, v2>
             context.write(k2, v2);
         }
+
+        /**
+         * run(..)运行后: 汇总埋点
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            metrics.finish(context);
+            super.cleanup(context);
+        }
     }
 
     /**
@@ -116,6 +159,25 @@ public class WordCountJobSkewRandomKey {
 
         private static final Logger logger = LoggerFactory.getLogger(MyReducer.class);
 
+        // 复用的v3
+        private final LongWritable v3 = new LongWritable();
+
+        // 埋点：计数器 + 采样日志 + 阶段耗时
+        private TaskMetrics metrics;
+
+        /**
+         * run(..)运行前
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.REDUCE);
+        }
+
         /**
          * Reduce函数：<k2, {v2,..}> => <k3, v3>
          *
@@ -129,21 +191,38 @@ public class WordCountJobSkewRandomKey {
         protected void reduce(Text k2, Iterable<LongWritable> v2s, Context context) throws IOException, InterruptedException {
             // 累加所有次数
             long sum = 0L;
+            long count = 0L;
             for (LongWritable v2 : v2s) {
-                logger.info(String.format("<k2, v2> = <%s, %s>", k2.toString(), v2));
                 sum += v2.get();
+                count++;
 
                 // 模拟Reduce复杂计算所消耗的时间
                 if(sum % 200 == 0) {
                     Thread.sleep(1);
                 }
             }
+            metrics.group(count, context);
 
             // <k2, {v2,..}> => <k3, v3>
             Text k3 = k2;
-            LongWritable v3 = new LongWritable(sum);
-            logger.info(String.format("<k1, v1> = <%s, %s>", k3.toString(), v3));
+            v3.set(sum);
+            if (metrics.sample()) {
+                logger.debug("<k3, v3> = <{}, {}>", k3, v3);
+            }
             context.write(k3, v3);
         }
+
+        /**
+         * run(..)运行后: 汇总埋点
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            metrics.finish(context);
+            super.cleanup(context);
+        }
     }
 }
@@ -76,6 +76,27 @@ public class WordCountJobSkewReduceAgain {
 
         private static final Logger logger = LoggerFactory.getLogger(MyMapper.class);
 
+        // 埋点：计数器 + 采样日志 + 阶段耗时
+        private TaskMetrics metrics;
+
+        // 复用的分词器、k2、v2：每个Map任务只创建一次, 避免每个单词都创建对象
+        private final TextTokenizer tokenizer = new TextTokenizer();
+        private final Text k2 = new Text();
+        private final LongWritable v2 = new LongWritable();
+
+        /**
+         * run(..)运行前
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.MAP);
+        }
+
         /**
          * Map函数：<k1, v1> => <k2, v2>
          *
@@ -87,21 +108,43 @@ public class WordCountJobSkewReduceAgain {
          */
         @Override
         protected void map(LongWritable k1, Text v1, Context context) throws IOException, InterruptedException {
-            logger.info(String.format("<k1, v1> = <%s, %s>", k1.get(), v1));
+            metrics.record(v1.getLength(), context);
+            if (metrics.sample()) {
+                logger.debug("<k1, v1> = <{}, {}>", k1, v1);
+            }
 
-            // 切割字符串
-            String[] words = v1.toString().split("\t");
+            // 切割字符串：第一列为打散后的单词, 第二列为次数
+            tokenizer.reset(v1);
+            if (!tokenizer.next()) {
+                return;
+            }
+
+            // 切割5_?：只保留第一个下划线之前的部分
+            int saltIndex = tokenizer.indexOf((byte) '_');
+            k2.set(tokenizer.bytes(), tokenizer.start(), saltIndex < 0 ? tokenizer.length() : saltIndex);
+            if (!tokenizer.next()) {
+                return;
+            }
 
-            // 切割5_?
-            String[] splits = words[0].split("_");
-            String key = splits[0];
-            String num = words[1];
+            metrics.tokens(tokenizer);
 
-            // <k1, v1> => <k2, v2>：只取每行的第一个单词
-            Text k2 = new Text(key);
-            LongWritable v2 = new LongWritable(Long.parseLong(num));
+            // <k1, v1> => <k2, v2>
+            v2.set(tokenizer.parseLong());
             context.write(k2, v2);
         }
+
+        /**
+         * run(..)运行后: 汇总埋点
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            metrics.finish(context);
+            super.cleanup(context);
+        }
     }
 
     /**
@@ -114,6 +157,25 @@ public class WordCountJobSkewReduceAgain {
 
         private static final Logger logger = LoggerFactory.getLogger(MyReducer.class);
 
+        // 复用的v3
+        private final LongWritable v3 = new LongWritable();
+
+        // 埋点：计数器 + 采样日志 + 阶段耗时
+        private TaskMetrics metrics;
+
+        /**
+         * run(..)运行前
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.REDUCE);
+        }
+
         /**
          * Reduce函数：<k2, {v2,..}> => <k3, v3>
          *
@@ -127,21 +189,38 @@ public class WordCountJobSkewReduceAgain {
         protected void reduce(Text k2, Iterable<LongWritable> v2s, Context context) throws IOException, InterruptedException {
             // 累加所有次数
             long sum = 0L;
+            long count = 0L;
             for (LongWritable v2 : v2s) {
-                logger.info(String.format("<k2, v2> = <%s, %s>", k2.toString(), v2));
                 sum += v2.get();
+                count++;
 
                 // 模拟Reduce复杂计算所消耗的时间
                 if(sum % 200 == 0) {
                     Thread.sleep(1);
                 }
             }
+            metrics.group(count, context);
 
             // <k2, {v2,..}> => <k3, v3>
             Text k3 = k2;
-            LongWritable v3 = new LongWritable(sum);
-            logger.info(String.format("<k1, v1> = <%s, %s>", k3.toString(), v3));
+            v3.set(sum);
+            if (metrics.sample()) {
+                logger.debug("<k3, v3> = <{}, {}>", k3, v3);
+            }
             context.write(k3, v3);
         }
+
+        /**
+         * run(..)运行后: 汇总埋点
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            metrics.finish(context);
+            super.cleanup(context);
+        }
     }
 }
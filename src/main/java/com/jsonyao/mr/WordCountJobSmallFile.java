@@ -2,14 +2,18 @@ package com.jsonyao.mr;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.CombineTextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,12 +30,23 @@ import java.io.IOException;
  * hello    2
  * me   1
  * you  1
+ * <p>
+ * 输入模式(wordcount.smallfile.input)：
+ * 1、seq(默认)：输入为SmallFileSeq/SmallFilePacker打包好的SequenceFile, <文件名, 文件内容>
+ * 2、combine：直接读取原始小文件目录, 不需要预先打包; CombineTextInputFormat按机架、节点把多个小文件合并为一个切片,
+ * 切片大小上限为mapreduce.input.fileinputformat.split.maxsize(默认128MB), 切片内每个文件各自使用一个LineRecordReader
  *
  * @author yaocs2
  * @since 2022-08-16
  */
 public class WordCountJobSmallFile {
 
+    public static final String INPUT_MODE = "wordcount.smallfile.input";
+    public static final String INPUT_MODE_SEQ = "seq";
+    public static final String INPUT_MODE_COMBINE = "combine";
+
+    public static final long DEFAULT_MAX_SPLIT_SIZE = 128L * 1024 * 1024;
+
     /**
      * 组装Job = Map + Reduce
      *
@@ -42,11 +57,14 @@ public class WordCountJobSmallFile {
             System.exit(100);
         }
 
-        String fileInputPath = args[0];
-        String fileOutputPath = args[1];
-
         try {
             Configuration conf = new Configuration();
+
+            // 解析命令行中, 通过-D传入的参数(如-Dwordcount.inmapper.enabled=true), 并添加到conf中
+            String[] remainingArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+            String fileInputPath = remainingArgs[0];
+            String fileOutputPath = remainingArgs[1];
+
             Job job = Job.getInstance(conf);
             job.setJarByClass(WordCountJobSmallFile.class);// 必须设置, 否则提交到集群后, Job会找不到这个WordCountJob类的
 
@@ -55,7 +73,16 @@ public class WordCountJobSmallFile {
             FileOutputFormat.setOutputPath(job, new Path(fileOutputPath));
 
             // 设置小文件合并优化处理类
-            job.setInputFormatClass(SequenceFileInputFormat.class);
+            String inputMode = conf.get(INPUT_MODE, INPUT_MODE_SEQ);
+            if (INPUT_MODE_COMBINE.equals(inputMode)) {
+                // 多个小文件合并为一个切片, 一个Map任务处理一个切片, 而不是一个文件
+                job.setInputFormatClass(CombineTextInputFormat.class);
+                CombineTextInputFormat.setMaxInputSplitSize(job, conf.getLong(FileInputFormat.SPLIT_MAXSIZE, DEFAULT_MAX_SPLIT_SIZE));
+            } else if (INPUT_MODE_SEQ.equals(inputMode)) {
+                job.setInputFormatClass(SequenceFileInputFormat.class);
+            } else {
+                throw new IllegalArgumentException("unknown " + INPUT_MODE + ": " + inputMode);
+            }
 
             // Map
             job.setMapperClass(MyMapper.class);
@@ -69,43 +96,101 @@ public class WordCountJobSmallFile {
 
             // 提交Job
             job.waitForCompletion(true);
+
+            // 输出Map端聚合效果
+            InMapperCombiner.report(job);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Map阶段
+     * Map阶段：seq模式下<k1, v1>为<Text, BytesWritable>, combine模式下为<LongWritable, Text>
      *
      * @author yaocs2
      * @since 2022-08-16
      */
-    public static class MyMapper extends Mapper<Text, Text, Text, LongWritable> {
+    public static class MyMapper extends Mapper<Writable, Writable, Text, LongWritable> {
 
         private static final Logger logger = LoggerFactory.getLogger(MyMapper.class);
 
+        // 埋点：计数器 + 采样日志 + 阶段耗时
+        private TaskMetrics metrics;
+
+        // 复用的分词器、k2、v2：每个Map任务只创建一次, 避免每个单词都创建对象
+        private final TextTokenizer tokenizer = new TextTokenizer();
+        private final Text k2 = new Text();
+        private final LongWritable v2 = new LongWritable(1L);
+
+        // Map端聚合器, 未开启时为null
+        private InMapperCombiner combiner;
+
         /**
-         * Map函数：<k1, v1> => <k2, v2>
+         * run(..)运行前
          *
-         * @param k1      每行数据的行首偏移量
-         * @param v1      每行的数据内容
          * @param context
          * @throws IOException
          * @throws InterruptedException
          */
         @Override
-        protected void map(Text k1, Text v1, Context context) throws IOException, InterruptedException {
-            logger.info(String.format("<k1, v1> = <%s, %s>", k1.toString(), v1.toString()));
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            this.combiner = InMapperCombiner.create(context.getConfiguration());
+            this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.MAP);
+        }
 
-            // 切割字符串
-            String[] words = v1.toString().split(" ");
+        /**
+         * Map函数：<k1, v1> => <k2, v2>
+         *
+         * @param k1      seq模式为文件名, combine模式为每行数据的行首偏移量
+         * @param v1      seq模式为整个文件的字节, combine模式为每行的数据内容
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void map(Writable k1, Writable v1, Context context) throws IOException, InterruptedException {
+            // 切割字符串：直接扫描UTF-8字节, 连续的空白字符视为一个分隔符
+            if (v1 instanceof BytesWritable) {
+                BytesWritable bytes = (BytesWritable) v1;
+                tokenizer.reset(bytes.getBytes(), 0, bytes.getLength());
+                metrics.record(bytes.getLength(), context);
+            } else {
+                Text text = (Text) v1;
+                tokenizer.reset(text);
+                metrics.record(text.getLength(), context);
+            }
+            if (metrics.sample()) {
+                logger.debug("<k1, v1> = <{}, {}>", k1, v1);
+            }
 
             // <k1, v1> => <k2, v2>
-            for (String word : words) {
-                Text k2 = new Text(word);
-                LongWritable v2 = new LongWritable(1L);
+            while (tokenizer.next()) {
+                if (combiner != null) {
+                    combiner.add(tokenizer.bytes(), tokenizer.start(), tokenizer.length(), 1L, context);
+                    continue;
+                }
+
+                tokenizer.copyTo(k2);
                 context.write(k2, v2);
             }
+            metrics.tokens(tokenizer);
+        }
+
+        /**
+         * run(..)运行后: 输出Map端聚合剩余的部分计数, 并汇总埋点
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (combiner != null) {
+                combiner.close(context);
+            }
+            metrics.finish(context);
+            super.cleanup(context);
         }
     }
 
@@ -119,6 +204,25 @@ public class WordCountJobSmallFile {
 
         private static final Logger logger = LoggerFactory.getLogger(MyReducer.class);
 
+        // 复用的v3
+        private final LongWritable v3 = new LongWritable();
+
+        // 埋点：计数器 + 采样日志 + 阶段耗时
+        private TaskMetrics metrics;
+
+        /**
+         * run(..)运行前
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            super.setup(context);
+            this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.REDUCE);
+        }
+
         /**
          * Reduce函数：<k2, {v2,..}> => <k3, v3>
          *
@@ -132,16 +236,33 @@ public class WordCountJobSmallFile {
         protected void reduce(Text k2, Iterable<LongWritable> v2s, Context context) throws IOException, InterruptedException {
             // 累加所有次数
             long sum = 0L;
+            long count = 0L;
             for (LongWritable v2 : v2s) {
-                logger.info(String.format("<k2, v2> = <%s, %s>", k2.toString(), v2));
                 sum += v2.get();
+                count++;
             }
+            metrics.group(count, context);
 
             // <k2, {v2,..}> => <k3, v3>
             Text k3 = k2;
-            LongWritable v3 = new LongWritable(sum);
-            logger.info(String.format("<k1, v1> = <%s, %s>", k3.toString(), v3));
+            v3.set(sum);
+            if (metrics.sample()) {
+                logger.debug("<k3, v3> = <{}, {}>", k3, v3);
+            }
             context.write(k3, v3);
         }
+
+        /**
+         * run(..)运行后: 汇总埋点
+         *
+         * @param context
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            metrics.finish(context);
+            super.cleanup(context);
+        }
     }
 }
@@ -4,19 +4,24 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.TotalOrderPartitioner;
+import org.apache.hadoop.util.GenericOptionsParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -43,8 +48,13 @@ import java.util.Objects;
  */
 public class WordSortJob {
 
+    private static final Logger logger = LoggerFactory.getLogger(WordSortJob.class);
+
     /**
      * 组装Job = Map + Reduce
+     * <p>
+     * 参数：输入路径 输出路径 [Reduce任务数], Reduce任务数大于1时, 先抽样输入生成分区边界, 再按TotalOrderPartitioner做范围分区,
+     * 各part文件按编号顺序拼接后即为全局有序
      *
      * @param args
      */
@@ -53,11 +63,15 @@ public class WordSortJob {
             System.exit(100);
         }
 
-        String fileInputPath = args[0];
-        String fileOutputPath = args[1];
-
         try {
             Configuration conf = new Configuration();
+
+            // 解析命令行中, 通过-D传入的参数, 并添加到conf中
+            String[] remainingArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+            String fileInputPath = remainingArgs[0];
+            String fileOutputPath = remainingArgs[1];
+            int reduceTaskNum = remainingArgs.length > 2 ? Integer.parseInt(remainingArgs[2]) : 1;
+
             Job job = Job.getInstance(conf);
             job.setJarByClass(WordCountJob.class);// 必须设置, 否则提交到集群后, Job会找不到这个WordCountJob类的
 
@@ -75,18 +89,137 @@ public class WordSortJob {
             job.setOutputKeyClass(Text.class);
             job.setOutputValueClass(NullWritable.class);
 
+            // 多个Reduce时使用全局排序分区
+            Path partitionPath = null;
+            if (reduceTaskNum > 1) {
+                partitionPath = new Path(fileOutputPath + "_partitions");
+                reduceTaskNum = writePartitionFile(job, partitionPath, reduceTaskNum);
+                if (reduceTaskNum > 1) {
+                    TotalOrderPartitioner.setPartitionFile(job.getConfiguration(), partitionPath);
+                    job.setPartitionerClass(TotalOrderPartitioner.class);
+                }
+            }
+            job.setNumReduceTasks(reduceTaskNum);
+
             // 提交Job
             job.waitForCompletion(true);
+
+            // 删除分区文件
+            if (partitionPath != null) {
+                partitionPath.getFileSystem(conf).delete(partitionPath, false);
+            }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * 抽样输入, 按Mapper相同的解析逻辑得到TwoIntWritable样本, 排序后等距选取reduceTaskNum - 1个分区边界写入分区文件
+     * <p>
+     * 1、排序使用TwoIntWritable.compare, 与Shuffle排序(第一列升序、第二列降序)一致, TotalOrderPartitioner再用同一个RawComparator二分查找
+     * 2、TotalOrderPartitioner要求边界严格递增, 相同的样本只取一次; 样本中不同的key不够时, 减少Reduce任务数
+     *
+     * @param job
+     * @param partitionPath
+     * @param reduceTaskNum
+     * @return 实际使用的Reduce任务数 = 边界数 + 1
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static int writePartitionFile(Job job, Path partitionPath, int reduceTaskNum) throws IOException, InterruptedException {
+        // 抽样：两列int打包成一个long, 不为每个样本创建对象
+        TextTokenizer tokenizer = new TextTokenizer();
+        TwoIntWritable key = new TwoIntWritable();
+        long[][] samples = {new long[1024]};
+        int[] sampleNum = {0};
+        SplitSampler.sample(job, line -> {
+            if (WordSortMapper.parse(tokenizer, line, key)) {
+                if (sampleNum[0] == samples[0].length) {
+                    samples[0] = Arrays.copyOf(samples[0], samples[0].length << 1);
+                }
+                samples[0][sampleNum[0]++] = ((long) key.getInt1() << 32) | (key.getInt2() & 0xFFFFFFFFL);
+            }
+        });
+
+        // 排序：第一列升序, 第二列降序 => 高32位原样, 低32位异或0x7FFFFFFF(翻转为降序的无符号序)后, 按有符号long升序即可
+        long[] sorted = samples[0];
+        int n = sampleNum[0];
+        for (int i = 0; i < n; i++) {
+            sorted[i] ^= 0x7FFFFFFFL;
+        }
+        Arrays.sort(sorted, 0, n);
+        for (int i = 0; i < n; i++) {
+            sorted[i] ^= 0x7FFFFFFFL;
+        }
+
+        // 等距选取边界, 跳过与上一个边界相同的样本
+        long[] splitPoints = new long[Math.max(0, reduceTaskNum - 1)];
+        int splitNum = 0;
+        float step = n / (float) reduceTaskNum;
+        int last = -1;
+        for (int i = 1; i < reduceTaskNum && n > 0; i++) {
+            int index = Math.max(last + 1, Math.min(n - 1, Math.round(step * i)));
+            while (last >= 0 && index < n && sorted[index] == sorted[last]) {
+                index++;
+            }
+            if (index >= n) {
+                break;
+            }
+            splitPoints[splitNum++] = sorted[index];
+            last = index;
+        }
+        if (splitNum + 1 < reduceTaskNum) {
+            logger.warn("only {} distinct split points in {} samples, reduce tasks {} -> {}",
+                    splitNum, n, reduceTaskNum, splitNum + 1);
+        }
+        if (splitNum == 0) {
+            return 1;
+        }
+
+        // 写入分区文件：<TwoIntWritable, NullWritable>
+        SequenceFile.Writer writer = SequenceFile.createWriter(job.getConfiguration(),
+                SequenceFile.Writer.file(partitionPath),
+                SequenceFile.Writer.keyClass(TwoIntWritable.class),
+                SequenceFile.Writer.valueClass(NullWritable.class));
+        try {
+            for (int i = 0; i < splitNum; i++) {
+                key.setInt1((int) (splitPoints[i] >> 32));
+                key.setInt2((int) splitPoints[i]);
+                writer.append(key, NullWritable.get());
+            }
+        } finally {
+            writer.close();
+        }
+
+        logger.info("wrote {} split points from {} samples to {}", splitNum, n, partitionPath);
+        return splitNum + 1;
+    }
 }
 
 class WordSortMapper extends Mapper<LongWritable, Text, TwoIntWritable, NullWritable> {
 
     private static final Logger logger = LoggerFactory.getLogger(WordSortMapper.class);
 
+    // 复用的分词器、k2
+    private final TextTokenizer tokenizer = new TextTokenizer();
+    private final TwoIntWritable k2 = new TwoIntWritable();
+
+    // 埋点：计数器 + 采样日志 + 阶段耗时
+    private TaskMetrics metrics;
+
+    /**
+     * run(..)运行前
+     *
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+        super.setup(context);
+        this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.MAP);
+    }
+
     /**
      * Map函数：<k1, v1> => <{int1, int2}, null>
      *
@@ -98,22 +231,50 @@ class WordSortMapper extends Mapper<LongWritable, Text, TwoIntWritable, NullWrit
      */
     @Override
     protected void map(LongWritable k1, Text v1, Context context) throws IOException, InterruptedException {
-        logger.info(String.format("<k1, v1> = <%s, %s>", k1.get(), v1));
+        metrics.record(v1.getLength(), context);
+        if (metrics.sample()) {
+            logger.debug("<k1, v1> = <{}, {}>", k1, v1);
+        }
 
-        // 切割字符串
-        String[] words = v1.toString().split(" ");
+        // 切割字符串：空行直接跳过
+        if (!parse(tokenizer, v1, k2)) {
+            return;
+        }
+        metrics.tokens(tokenizer);
 
         // <k1, v1> => <k2, v2>
-        TwoIntWritable k2 = new TwoIntWritable();
         NullWritable v2 = NullWritable.get();
-        if (words.length >= 1) {
-            k2.setInt1(Integer.valueOf(words[0]));
-        }
-        if (words.length >= 2) {
-            k2.setInt2(Integer.valueOf(words[1]));
+        context.write(k2, v2);
+    }
+
+    /**
+     * 解析一行两列数据, 缺失的第二列按0处理; Driver端抽样生成分区边界时也使用此方法, 保证与Map输出的key一致
+     *
+     * @param tokenizer
+     * @param line
+     * @param key
+     * @return false表示空行
+     */
+    static boolean parse(TextTokenizer tokenizer, Text line, TwoIntWritable key) {
+        if (!tokenizer.reset(line).next()) {
+            return false;
         }
+        key.setInt1(tokenizer.parseInt());
+        key.setInt2(tokenizer.next() ? tokenizer.parseInt() : 0);
+        return true;
+    }
 
-        context.write(k2, v2);
+    /**
+     * run(..)运行后: 汇总埋点
+     *
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+        metrics.finish(context);
+        super.cleanup(context);
     }
 }
 
@@ -121,6 +282,22 @@ class WordSortReducer extends Reducer<TwoIntWritable, NullWritable, Text, NullWr
 
     private static final Logger logger = LoggerFactory.getLogger(WordSortReducer.class);
 
+    // 埋点：计数器 + 采样日志 + 阶段耗时
+    private TaskMetrics metrics;
+
+    /**
+     * run(..)运行前
+     *
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+        super.setup(context);
+        this.metrics = TaskMetrics.start(context, logger, TaskMetrics.Phase.REDUCE);
+    }
+
     /**
      * Reduce函数：<{int1, int2}, null> => <int1->int2, null>
      *
@@ -132,18 +309,42 @@ class WordSortReducer extends Reducer<TwoIntWritable, NullWritable, Text, NullWr
      */
     @Override
     protected void reduce(TwoIntWritable k2, Iterable<NullWritable> v2s, Context context) throws IOException, InterruptedException {
-        logger.info(String.format("<k2, v2> = <%s, %s>", k2.toString(), v2s.toString()));
+        long count = 0L;
+        for (NullWritable v2 : v2s) {
+            count++;
+        }
+        metrics.group(count, context);
 
         Text k3 = new Text(k2.getInt1() + "->" + k2.getInt2());
         NullWritable v3 = NullWritable.get();
 
-        logger.info(String.format("<k3, v3> = <%s, %s>", k3.toString(), v3.toString()));
+        if (metrics.sample()) {
+            logger.debug("<k3, v3> = <{}, {}>", k3, v3);
+        }
         context.write(k3, v3);
     }
+
+    /**
+     * run(..)运行后: 汇总埋点
+     *
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Override
+    protected void cleanup(Context context) throws IOException, InterruptedException {
+        metrics.finish(context);
+        super.cleanup(context);
+    }
 }
 
 class TwoIntWritable implements WritableComparable {
 
+    static {
+        // 注册RawComparator：排序、归并时直接比较序列化后的字节, 不再反序列化
+        WritableComparator.define(TwoIntWritable.class, new Comparator());
+    }
+
     private int int1;
     private int int2;
 
@@ -184,15 +385,26 @@ class TwoIntWritable implements WritableComparable {
             return 0;
         }
 
-        // 首先对第一列按照从小到大排序
         TwoIntWritable o = (TwoIntWritable) obj;
-        if (int1 != o.getInt1()) {
-            return int1 - o.getInt1();
-        }
-        // 如果第一列相同, 则需要根据第二列按照从大到小排序
-        else {
-            return o.getInt2() - int2;
+        return compare(int1, int2, o.getInt1(), o.getInt2());
+    }
+
+    /**
+     * 首先对第一列按照从小到大排序, 如果第一列相同, 则需要根据第二列按照从大到小排序
+     * <p>
+     * 注意：不能用int1 - o.int1相减, 两个数符号相反且绝对值较大时会溢出, 导致顺序错乱
+     *
+     * @param a1
+     * @param a2
+     * @param b1
+     * @param b2
+     * @return
+     */
+    static int compare(int a1, int a2, int b1, int b2) {
+        if (a1 != b1) {
+            return Integer.compare(a1, b1);
         }
+        return Integer.compare(b2, a2);
     }
 
     /**
@@ -229,4 +441,30 @@ class TwoIntWritable implements WritableComparable {
                 ", int2=" + int2 +
                 '}';
     }
+
+    /**
+     * TwoIntWritable的RawComparator：直接读取序列化后的8个字节进行比较
+     *
+     * @author yaocs2
+     * @since 2022-08-21
+     */
+    static class Comparator extends WritableComparator {
+
+        public Comparator() {
+            super(TwoIntWritable.class);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return TwoIntWritable.compare(readInt(b1, s1), readInt(b1, s1 + 4), readInt(b2, s2), readInt(b2, s2 + 4));
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public int compare(WritableComparable a, WritableComparable b) {
+            TwoIntWritable x = (TwoIntWritable) a;
+            TwoIntWritable y = (TwoIntWritable) b;
+            return TwoIntWritable.compare(x.getInt1(), x.getInt2(), y.getInt1(), y.getInt2());
+        }
+    }
 }
@@ -0,0 +1,94 @@
+package com.jsonyao.rpc;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * 批量调用的结果：与请求一一对应, 每个元素要么是结果, 要么是错误信息, 一个元素失败不影响其他元素
+ * <p>
+ * 序列化格式：VInt元素个数, 每个元素 = 1字节状态(0成功, 1失败) + 结果或错误信息(Text.writeString)
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class HelloBatchResult implements Writable {
+
+    private static final byte OK = 0;
+    private static final byte ERROR = 1;
+
+    private String[] values;
+    private boolean[] errors;
+
+    /**
+     * 反序列化用
+     */
+    public HelloBatchResult() {
+        this(0);
+    }
+
+    public HelloBatchResult(int size) {
+        this.values = new String[size];
+        this.errors = new boolean[size];
+    }
+
+    public int size() {
+        return values.length;
+    }
+
+    public void setResult(int i, String result) {
+        values[i] = result;
+        errors[i] = false;
+    }
+
+    public void setError(int i, String error) {
+        values[i] = error;
+        errors[i] = true;
+    }
+
+    public boolean isError(int i) {
+        return errors[i];
+    }
+
+    /**
+     * @param i
+     * @return 第i个元素的结果, 失败时返回null
+     */
+    public String getResult(int i) {
+        return errors[i] ? null : values[i];
+    }
+
+    /**
+     * @param i
+     * @return 第i个元素的错误信息, 成功时返回null
+     */
+    public String getError(int i) {
+        return errors[i] ? values[i] : null;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, values.length);
+        for (int i = 0; i < values.length; i++) {
+            out.writeByte(errors[i] ? ERROR : OK);
+            Text.writeString(out, values[i]);
+        }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        int size = WritableUtils.readVInt(in);
+        if (values.length != size) {
+            values = new String[size];
+            errors = new boolean[size];
+        }
+        for (int i = 0; i < size; i++) {
+            errors[i] = in.readByte() == ERROR;
+            values[i] = Text.readString(in);
+        }
+    }
+}
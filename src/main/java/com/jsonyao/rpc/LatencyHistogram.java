@@ -0,0 +1,129 @@
+package com.jsonyao.rpc;
+
+/**
+ * 对数-线性延迟直方图(HDR风格)：按2的幂分段, 每段再线性切成2^SUB_BUCKET_BITS个桶, 相对误差 < 1 / 2^SUB_BUCKET_BITS
+ * <p>
+ * 1、记录：一次位运算算出桶下标, 再对long[]计数加一, 不分配对象
+ * 2、覆盖：0 ~ Long.MAX_VALUE纳秒, 桶数固定为(64 - SUB_BUCKET_BITS + 1) * 2^SUB_BUCKET_BITS
+ * 3、线程：不是线程安全的, 每个线程记录到自己的直方图, 最后merge(..)汇总, 避免记录时竞争
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class LatencyHistogram {
+
+    // 每段128个桶, 相对误差 < 0.8%
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private double sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * 记录一个值, 负数按0记录
+     *
+     * @param value 纳秒
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * 把other合并到当前直方图
+     *
+     * @param other
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return count == 0 ? 0.0 : sum / count;
+    }
+
+    /**
+     * 百分位数
+     *
+     * @param percentile 0 ~ 100, 如99.9
+     * @return 所在桶的上界, 不超过记录过的最大值
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        rank = Math.max(1, Math.min(count, rank));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestEquivalentValue(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * p50/p90/p99/p999/max, 单位微秒
+     */
+    @Override
+    public String toString() {
+        return String.format("count %d, mean %.1f us, p50 %.1f us, p90 %.1f us, p99 %.1f us, p999 %.1f us, max %.1f us",
+                count, getMean() / 1000.0, percentile(50) / 1000.0, percentile(90) / 1000.0,
+                percentile(99) / 1000.0, percentile(99.9) / 1000.0, max / 1000.0);
+    }
+
+    /**
+     * v < 2^SUB_BUCKET_BITS时精确记录; 否则取最高位以下SUB_BUCKET_BITS位作为段内下标
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * 桶内的最大值
+     */
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = index & (SUB_BUCKETS - 1);
+        long next = (SUB_BUCKETS + subBucket + 1) << shift;
+        // 最后一个桶的上界超出long范围
+        return next <= 0 ? Long.MAX_VALUE : next - 1;
+    }
+}
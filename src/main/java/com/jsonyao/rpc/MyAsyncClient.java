@@ -0,0 +1,289 @@
+package com.jsonyao.rpc;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.ServiceException;
+import com.jsonyao.rpc.MyProtocolProtos.HelloBatchRequestProto;
+import com.jsonyao.rpc.MyProtocolProtos.HelloBatchResponseProto;
+import com.jsonyao.rpc.MyProtocolProtos.HelloRequestProto;
+import com.jsonyao.rpc.MyProtocolProtos.HelloResponseProto;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.ipc.Client;
+import org.apache.hadoop.ipc.ProtobufHelper;
+import org.apache.hadoop.ipc.ProtobufRpcEngine;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.util.concurrent.AsyncGet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * MyProtocol的异步客户端：基于Hadoop IPC的异步调用模式(Client.setAsynchronousMode(true)), 调用立即返回CompletableFuture
+ * <p>
+ * 1、调用：Hadoop只有ProtobufRpcEngine支持异步调用, 所以走protobuf引擎(服务端需要rpc.engine=protobuf);
+ * 异步模式下MyProtocolPB代理的方法立即返回null, 响应由ProtobufRpcEngine.getAsyncReturnMessage()取得,
+ * 请求、响应的转换与MyProtocolClientSideTranslatorPB相同
+ * 2、并发：每个连接最多rpc.async.max.inflight个未完成的调用, 超出时调用方阻塞等待, 等待时间计入超时;
+ * Client自身的上限ipc.client.async.calls.max会被调到不小于该值, 避免抛AsyncCallLimitExceededException
+ * 3、超时：从发起调用算起rpc.async.timeout.ms内没有响应, 由定时任务让future以TimeoutException结束;
+ * 此时请求已经发出, 名额要等到响应到达或连接断开(ipc.client.rpc-timeout.ms)才归还, 保证在途调用数不超过上限
+ * 4、完成：AsyncGet没有完成回调, 只能轮询; 每个客户端只有一个轮询线程, 它同时是超时的定时器,
+ * 轮询线程遍历未完成的调用, 对isDone()的调用get(0, ..)取出响应并完成future.
+ * 有在途调用时, 轮询线程每隔10微秒到rpc.async.poll.interval.us(没有调用完成时逐步加倍)醒来一次, 会占用一些CPU;
+ * 没有在途调用时不轮询。调大rpc.async.poll.interval.us可以减少空转, 代价是响应到达后最多晚这么久才完成future
+ * 5、future的回调(thenApply等)默认在轮询线程上执行, 会推迟其它调用的完成, 耗时的回调应指定自己的Executor, 回调中也不能再发起调用
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class MyAsyncClient implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MyAsyncClient.class);
+
+    public static final String MAX_IN_FLIGHT = "rpc.async.max.inflight";
+    public static final String TIMEOUT_MS = "rpc.async.timeout.ms";
+    public static final String POLL_INTERVAL_US = "rpc.async.poll.interval.us";
+
+    private static final long MIN_POLL_INTERVAL_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private final MyProtocolPB rpcProxy;
+    private final Semaphore inFlight;
+    private final long timeoutNanos;
+    private final long maxPollIntervalNanos;
+
+    /**
+     * 轮询线程兼定时器, pending只在这个线程上访问
+     */
+    private final ScheduledThreadPoolExecutor poller;
+    private final List<PendingCall<?>> pending = new ArrayList<>();
+    private long pollIntervalNanos;
+    private boolean polling;
+
+    public MyAsyncClient(Configuration conf, InetSocketAddress addr) throws IOException {
+        int maxInFlight = Math.max(1, conf.getInt(MAX_IN_FLIGHT, 100));
+        this.inFlight = new Semaphore(maxInFlight);
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(conf.getLong(TIMEOUT_MS, 30000L));
+        this.maxPollIntervalNanos = Math.max(MIN_POLL_INTERVAL_NANOS,
+                TimeUnit.MICROSECONDS.toNanos(conf.getLong(POLL_INTERVAL_US, 1000L)));
+        this.poller = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "my-async-client-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.setRemoveOnCancelPolicy(true);
+        poller.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        Configuration clientConf = new Configuration(conf);
+        int asyncCallsMax = clientConf.getInt(CommonConfigurationKeys.IPC_CLIENT_ASYNC_CALLS_MAX_KEY,
+                CommonConfigurationKeys.IPC_CLIENT_ASYNC_CALLS_MAX_DEFAULT);
+        if (asyncCallsMax < maxInFlight) {
+            clientConf.setInt(CommonConfigurationKeys.IPC_CLIENT_ASYNC_CALLS_MAX_KEY, maxInFlight);
+        }
+        RPC.setProtocolEngine(clientConf, MyProtocolPB.class, ProtobufRpcEngine.class);
+        this.rpcProxy = RPC.getProxy(MyProtocolPB.class, RPC.getProtocolVersion(MyProtocolPB.class), addr, clientConf);
+    }
+
+    public CompletableFuture<String> hello(String name) {
+        HelloRequestProto request = MyProtocolClientSideTranslatorPB.toHelloRequest(name);
+        return call("hello", () -> rpcProxy.hello(null, request),
+                response -> ((HelloResponseProto) response).getResult());
+    }
+
+    public CompletableFuture<HelloBatchResult> helloBatch(String[] names) {
+        HelloBatchRequestProto request = MyProtocolClientSideTranslatorPB.toHelloBatchRequest(names);
+        return call("helloBatch", () -> rpcProxy.helloBatch(null, request),
+                response -> MyProtocolClientSideTranslatorPB.fromHelloBatchResponse((HelloBatchResponseProto) response));
+    }
+
+    /**
+     * 在异步模式下发出一个调用, 代理方法的返回值为null
+     */
+    private interface Invocation {
+        void invoke() throws ServiceException;
+    }
+
+    /**
+     * 异步调用, 在途调用数已满时阻塞等待; 不能在轮询线程(future的回调)上调用
+     *
+     * @param method     方法名, 用于超时信息
+     * @param invocation 通过代理发出调用
+     * @param converter  响应消息 => 返回值
+     * @param <T>
+     * @return
+     */
+    private <T> CompletableFuture<T> call(String method, Invocation invocation, Function<Message, T> converter) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            if (!inFlight.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                future.completeExceptionally(new TimeoutException(method + " timed out waiting for "
+                        + "an in-flight slot after " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms"));
+                return future;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        AsyncGet<Message, Exception> response;
+        boolean asynchronous = Client.isAsynchronousMode();
+        Client.setAsynchronousMode(true);
+        try {
+            invocation.invoke();
+            response = ProtobufRpcEngine.getAsyncReturnMessage();
+        } catch (ServiceException e) {
+            inFlight.release();
+            future.completeExceptionally(ProtobufHelper.getRemoteException(e));
+            return future;
+        } catch (RuntimeException e) {
+            inFlight.release();
+            future.completeExceptionally(e);
+            return future;
+        } finally {
+            Client.setAsynchronousMode(asynchronous);
+        }
+
+        PendingCall<T> call = new PendingCall<>(method, response, converter, future);
+        try {
+            poller.execute(() -> add(call, start));
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            future.completeExceptionally(new IOException("client closed", e));
+        }
+        return future;
+    }
+
+    /**
+     * 在轮询线程上登记调用和它的超时, 没有在轮询时开始轮询
+     */
+    private void add(PendingCall<?> call, long start) {
+        pending.add(call);
+        long delay = Math.max(0L, start + timeoutNanos - System.nanoTime());
+        try {
+            call.expiry = poller.schedule(() -> expire(call), delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // 已经close(), 由最后一次轮询结束它
+            logger.debug("poller stopped before {} was scheduled", call.method);
+        }
+        pollIntervalNanos = MIN_POLL_INTERVAL_NANOS;
+        if (!polling) {
+            polling = true;
+            poll();
+        }
+    }
+
+    /**
+     * 遍历未完成的调用, 完成已有响应的调用; 还有未完成的调用时安排下一次轮询, 没有调用完成时加倍等待间隔
+     */
+    private void poll() {
+        boolean progress = false;
+        Iterator<PendingCall<?>> iterator = pending.iterator();
+        while (iterator.hasNext()) {
+            PendingCall<?> call = iterator.next();
+            if (call.response.isDone()) {
+                iterator.remove();
+                call.complete();
+                inFlight.release();
+                progress = true;
+            }
+        }
+
+        if (pending.isEmpty()) {
+            polling = false;
+            return;
+        }
+        pollIntervalNanos = progress ? MIN_POLL_INTERVAL_NANOS : Math.min(pollIntervalNanos * 2, maxPollIntervalNanos);
+        try {
+            poller.schedule(this::poll, pollIntervalNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            failPending();
+        }
+    }
+
+    /**
+     * 已经close(), 还没有响应的调用以异常结束并归还名额
+     */
+    private void failPending() {
+        for (PendingCall<?> call : pending) {
+            call.future.completeExceptionally(new IOException(call.method + " aborted: client closed"));
+            inFlight.release();
+        }
+        pending.clear();
+        polling = false;
+    }
+
+    /**
+     * 调用超时：future以TimeoutException结束, 调用继续留在pending中占用名额, 直到响应到达或连接断开
+     */
+    private void expire(PendingCall<?> call) {
+        call.future.completeExceptionally(new TimeoutException(call.method + " timed out after "
+                + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms"));
+    }
+
+    /**
+     * 关闭代理(没有其它代理使用时Client随之停止), 已有响应的调用正常完成, 其余以异常结束
+     */
+    @Override
+    public void close() {
+        RPC.stopProxy(rpcProxy);
+        try {
+            poller.execute(() -> {
+                poll();
+                failPending();
+            });
+        } catch (RejectedExecutionException e) {
+            logger.debug("poller already stopped");
+        }
+        poller.shutdown();
+    }
+
+    /**
+     * 一个已发出、未完成的调用
+     */
+    private static class PendingCall<T> {
+
+        private final String method;
+        private final AsyncGet<Message, Exception> response;
+        private final Function<Message, T> converter;
+        private final CompletableFuture<T> future;
+        private ScheduledFuture<?> expiry;
+
+        PendingCall(String method, AsyncGet<Message, Exception> response, Function<Message, T> converter,
+                    CompletableFuture<T> future) {
+            this.method = method;
+            this.response = response;
+            this.converter = converter;
+            this.future = future;
+        }
+
+        /**
+         * 响应已到达, get(0, ..)不会阻塞; 即使future已超时也要调用, Client才会减少它的异步调用计数
+         */
+        void complete() {
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            try {
+                future.complete(converter.apply(response.get(0L, TimeUnit.NANOSECONDS)));
+            } catch (Exception e) {
+                // 服务端异常为RemoteException
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -2,9 +2,11 @@ package com.jsonyao.rpc;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 客户端代码
@@ -17,8 +19,47 @@ public class MyClient {
     public static void main(String[] args) throws IOException {
         InetSocketAddress addr = new InetSocketAddress("localhost", 1234);
         Configuration conf = new Configuration();
-        MyProtocol proxy = RPC.getProxy(MyProtocol.class, MyProtocol.versionID, addr, conf);
+
+        // 解析命令行中, 通过-D传入的参数(如-Drpc.engine=protobuf), 并添加到conf中
+        new GenericOptionsParser(conf, args);
+
+        MyProtocol proxy = getProxy(conf, addr);
         String result = proxy.hello("RPC");
         System.out.println("RPC Client revived: " + result);
+
+        // 批量调用：一次往返
+        HelloBatchResult batch = proxy.helloBatch(new String[]{"RPC", "Batch", null});
+        for (int i = 0; i < batch.size(); i++) {
+            System.out.println("RPC Client revived: " + (batch.isError(i) ? "error " + batch.getError(i) : batch.getResult(i)));
+        }
+        RPC.stopProxy(proxy);
+
+        // 异步调用：同时发出多个调用, 不等待前一个返回; Hadoop只有protobuf引擎支持异步调用
+        if (!MyServer.ENGINE_PROTOBUF.equals(conf.get(MyServer.ENGINE))) {
+            return;
+        }
+        try (MyAsyncClient asyncClient = new MyAsyncClient(conf, addr)) {
+            CompletableFuture<String> first = asyncClient.hello("Async");
+            CompletableFuture<HelloBatchResult> second = asyncClient.helloBatch(new String[]{"Async", "Batch"});
+            System.out.println("RPC Client revived: " + first.join() + ", " + second.join().size() + " batch results");
+        }
+    }
+
+    /**
+     * 按rpc.engine创建MyProtocol的代理, 与MyServer.start(..)使用的引擎对应; 用完后RPC.stopProxy(..)
+     *
+     * @param conf
+     * @param addr
+     * @return
+     * @throws IOException
+     */
+    public static MyProtocol getProxy(Configuration conf, InetSocketAddress addr) throws IOException {
+        String engine = conf.get(MyServer.ENGINE, MyServer.ENGINE_WRITABLE);
+        if (MyServer.ENGINE_PROTOBUF.equals(engine)) {
+            return new MyProtocolClientSideTranslatorPB(addr, conf);
+        } else if (MyServer.ENGINE_WRITABLE.equals(engine)) {
+            return RPC.getProxy(MyProtocol.class, MyProtocol.versionID, addr, conf);
+        }
+        throw new IllegalArgumentException("unknown " + MyServer.ENGINE + ": " + engine);
     }
 }
@@ -0,0 +1,298 @@
+package com.jsonyao.rpc;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * MyProtocol压测客户端：多个并发调用者在指定时长内以目标速率调用hello(..)/helloBatch(..), 统计吞吐量与延迟分布
+ * <p>
+ * 1、调用者：rpc.load.callers个, 平台线程或虚拟线程(rpc.load.virtual.threads=true, 需要JDK 21+, 运行时通过反射创建, 不可用时退回平台线程)
+ * 2、速率：rpc.load.rate为所有调用者合计的 次/秒, 平均分给每个调用者, 每个调用者按固定间隔排好每次调用的计划时间;
+ * 延迟从计划时间算起, 服务端变慢导致的排队时间也会计入(避免coordinated omission); 0表示不限速, 延迟从实际发出时算起
+ * 3、延迟：每个调用者记录到自己的LatencyHistogram, 结束后合并, 输出p50/p99/p999
+ * 4、服务端：rpc.load.port=0(默认)时在本进程内启动MyServer(rpc.engine、rpc.server.*同样生效), 结束时输出服务端队列指标;
+ * 否则压测rpc.load.host:rpc.load.port上已运行的服务端; 结束后显式退出, FairCallQueue的定时器线程不会阻止进程退出
+ * 5、用户：FairCallQueue默认按用户区分优先级, rpc.load.users>1时调用者按编号轮流分给rpc.load.user.prefix-0..n-1这些用户,
+ * 每个用户一个代理、一个连接(SIMPLE认证下服务端看到的就是这个用户名), 并分别输出各用户的延迟;
+ * 需要不均衡的负载时, 另起一个压测进程, 用不同的rpc.load.user.prefix压同一个服务端
+ * <p>
+ * 运行：hadoop jar db_hadoop.jar com.jsonyao.rpc.MyLoadClient -Drpc.load.callers=64 -Drpc.load.rate=20000 -Drpc.load.duration.seconds=30
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class MyLoadClient {
+
+    private static final Logger logger = LoggerFactory.getLogger(MyLoadClient.class);
+
+    public static final String CALLERS = "rpc.load.callers";
+    public static final String VIRTUAL_THREADS = "rpc.load.virtual.threads";
+    public static final String RATE = "rpc.load.rate";
+    public static final String DURATION_SECONDS = "rpc.load.duration.seconds";
+    public static final String WARMUP_SECONDS = "rpc.load.warmup.seconds";
+    public static final String BATCH_SIZE = "rpc.load.batch.size";
+    public static final String HOST = "rpc.load.host";
+    public static final String PORT = "rpc.load.port";
+    public static final String USERS = "rpc.load.users";
+    public static final String USER_PREFIX = "rpc.load.user.prefix";
+
+    /**
+     * 压测结果
+     */
+    public static class Result {
+
+        private final LatencyHistogram histogram;
+        private final long errors;
+        private final long nanos;
+
+        Result(LatencyHistogram histogram, long errors, long nanos) {
+            this.histogram = histogram;
+            this.errors = errors;
+            this.nanos = nanos;
+        }
+
+        public LatencyHistogram getHistogram() {
+            return histogram;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public double getCallsPerSecond() {
+            return histogram.getCount() * 1e9 / Math.max(1L, nanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f calls/s, %d errors, %s", getCallsPerSecond(), errors, histogram);
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            execute(args);
+        } catch (Exception e) {
+            logger.error("load test failed", e);
+            System.exit(1);
+        }
+        // 进程内服务端启用FairCallQueue时, DecayRpcScheduler的非守护定时器线程会让JVM一直不退出
+        System.exit(0);
+    }
+
+    private static void execute(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+
+        // 解析命令行中, 通过-D传入的参数(如-Drpc.load.callers=64), 并添加到conf中
+        new GenericOptionsParser(conf, args);
+
+        int port = conf.getInt(PORT, 0);
+        RPC.Server server = null;
+        InetSocketAddress addr;
+        if (port == 0) {
+            server = MyServer.start(conf, "localhost", 0);
+            addr = server.getListenerAddress();
+            logger.info("started in-process server on {}", addr);
+        } else {
+            addr = new InetSocketAddress(conf.get(HOST, "localhost"), port);
+        }
+
+        try {
+            MyLoadClient client = new MyLoadClient(conf, addr);
+            int warmupSeconds = conf.getInt(WARMUP_SECONDS, 5);
+            if (warmupSeconds > 0) {
+                logger.info("warmup: {}", client.run(warmupSeconds));
+            }
+            System.out.println(client.run(conf.getInt(DURATION_SECONDS, 30)));
+            if (server != null) {
+                // 服务端排队时间与处理时间, 判断瓶颈在handler还是reader
+                System.out.println(new MyServerMetrics(server).snapshot());
+            }
+        } finally {
+            if (server != null) {
+                MyServer.stop(server);
+            }
+        }
+    }
+
+    private final Configuration conf;
+    private final InetSocketAddress addr;
+    private final int callers;
+    private final boolean virtualThreads;
+    private final double rate;
+    private final int batchSize;
+    private final int users;
+    private final String userPrefix;
+
+    public MyLoadClient(Configuration conf, InetSocketAddress addr) {
+        this.conf = conf;
+        this.addr = addr;
+        this.callers = Math.max(1, conf.getInt(CALLERS, 16));
+        this.virtualThreads = conf.getBoolean(VIRTUAL_THREADS, false);
+        this.rate = conf.getDouble(RATE, 0.0);
+        this.batchSize = conf.getInt(BATCH_SIZE, 0);
+        this.users = Math.max(1, Math.min(callers, conf.getInt(USERS, 1)));
+        this.userPrefix = conf.get(USER_PREFIX, "load-user");
+    }
+
+    /**
+     * 压测durationSeconds秒
+     *
+     * @param durationSeconds
+     * @return
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Result run(int durationSeconds) throws IOException, InterruptedException {
+        // 同一个地址、协议、用户的代理共用一个连接, 调用在连接上多路复用
+        MyProtocol[] proxies = new MyProtocol[users];
+        ExecutorService executor = newExecutor();
+        try {
+            for (int i = 0; i < users; i++) {
+                proxies[i] = users == 1 ? MyClient.getProxy(conf, addr) : UserGroupInformation
+                        .createRemoteUser(userPrefix + "-" + i)
+                        .doAs((PrivilegedExceptionAction<MyProtocol>) () -> MyClient.getProxy(conf, addr));
+            }
+
+            List<Caller> tasks = new ArrayList<>(callers);
+            CountDownLatch done = new CountDownLatch(callers);
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+            // 每个调用者两次调用之间的计划间隔, 0表示不限速
+            long interval = rate > 0 ? (long) (1e9 * callers / rate) : 0L;
+            for (int i = 0; i < callers; i++) {
+                // 错开各调用者的起始时间, 避免同时发出
+                Caller caller = new Caller(proxies[i % users], start + (callers == 1 ? 0 : interval * i / callers), interval, deadline, done);
+                tasks.add(caller);
+                executor.execute(caller);
+            }
+            done.await();
+            long nanos = System.nanoTime() - start;
+
+            LatencyHistogram histogram = new LatencyHistogram();
+            LatencyHistogram[] userHistograms = new LatencyHistogram[users];
+            long[] userErrors = new long[users];
+            long errors = 0L;
+            for (int i = 0; i < callers; i++) {
+                Caller caller = tasks.get(i);
+                histogram.merge(caller.histogram);
+                errors += caller.errors;
+                if (userHistograms[i % users] == null) {
+                    userHistograms[i % users] = new LatencyHistogram();
+                }
+                userHistograms[i % users].merge(caller.histogram);
+                userErrors[i % users] += caller.errors;
+            }
+            if (users > 1) {
+                for (int i = 0; i < users; i++) {
+                    logger.info("{}-{}: {}", userPrefix, i, new Result(userHistograms[i], userErrors[i], nanos));
+                }
+            }
+            return new Result(histogram, errors, nanos);
+        } finally {
+            executor.shutdownNow();
+            for (MyProtocol proxy : proxies) {
+                if (proxy != null) {
+                    RPC.stopProxy(proxy);
+                }
+            }
+        }
+    }
+
+    /**
+     * 虚拟线程：JDK 21+的Executors.newVirtualThreadPerTaskExecutor(), 编译目标为1.8, 通过反射调用
+     */
+    private ExecutorService newExecutor() {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                logger.warn("virtual threads are not available on Java {}, using platform threads",
+                        System.getProperty("java.version"));
+            }
+        }
+        return Executors.newFixedThreadPool(callers);
+    }
+
+    /**
+     * 一个调用者：按计划时间循环调用, 直到deadline
+     */
+    private class Caller implements Runnable {
+
+        private final MyProtocol proxy;
+        private final long interval;
+        private final long deadline;
+        private final CountDownLatch done;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final String[] batch;
+        private long scheduled;
+        private long errors;
+
+        Caller(MyProtocol proxy, long firstCall, long interval, long deadline, CountDownLatch done) {
+            this.proxy = proxy;
+            this.scheduled = firstCall;
+            this.interval = interval;
+            this.deadline = deadline;
+            this.done = done;
+            this.batch = batchSize > 0 ? new String[batchSize] : null;
+            if (batch != null) {
+                for (int i = 0; i < batchSize; i++) {
+                    batch[i] = "RPC-" + i;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    if (interval > 0) {
+                        // 等到计划时间; 已经落后时立即发出, 不跳过
+                        if (scheduled - now > 0) {
+                            LockSupport.parkNanos(scheduled - now);
+                            now = System.nanoTime();
+                        }
+                    } else {
+                        scheduled = now;
+                    }
+                    if (now - deadline >= 0 || Thread.currentThread().isInterrupted()) {
+                        break;
+                    }
+
+                    try {
+                        if (batch != null) {
+                            proxy.helloBatch(batch);
+                        } else {
+                            proxy.hello("RPC");
+                        }
+                        histogram.record(System.nanoTime() - scheduled);
+                    } catch (RuntimeException e) {
+                        errors++;
+                        if (errors == 1) {
+                            logger.warn("call failed", e);
+                        }
+                    }
+                    scheduled += interval;
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+}
@@ -10,7 +10,10 @@ import org.apache.hadoop.ipc.VersionedProtocol;
  */
 public interface MyProtocol extends VersionedProtocol {
 
-    long versionID = 123456;
+    /**
+     * 123457：新增helloBatch(..), 旧版本客户端会被服务端以RPC.VersionMismatch拒绝
+     */
+    long versionID = 123457;
 
     /**
      * 自定义方法
@@ -19,4 +22,12 @@ public interface MyProtocol extends VersionedProtocol {
      * @return
      */
     String hello(String name);
+
+    /**
+     * 批量版本的hello(..)：一次往返处理多个name, 每个元素单独返回结果或错误
+     *
+     * @param names
+     * @return 与names一一对应
+     */
+    HelloBatchResult helloBatch(String[] names);
 }
@@ -0,0 +1,117 @@
+package com.jsonyao.rpc;
+
+import com.google.protobuf.ServiceException;
+import com.jsonyao.rpc.MyProtocolProtos.HelloBatchEntryProto;
+import com.jsonyao.rpc.MyProtocolProtos.HelloBatchRequestProto;
+import com.jsonyao.rpc.MyProtocolProtos.HelloBatchResponseProto;
+import com.jsonyao.rpc.MyProtocolProtos.HelloRequestProto;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.ipc.ProtobufHelper;
+import org.apache.hadoop.ipc.ProtobufRpcEngine;
+import org.apache.hadoop.ipc.ProtocolSignature;
+import org.apache.hadoop.ipc.ProtocolTranslator;
+import org.apache.hadoop.ipc.RPC;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+
+/**
+ * 客户端翻译器：对调用方仍然是MyProtocol, 内部把参数转换为protobuf请求, 经由ProtobufRpcEngine的代理发出
+ * <p>
+ * 服务端异常以ServiceException返回, 解包为RemoteException后包装成UncheckedIOException抛出(MyProtocol的方法没有声明IOException)
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class MyProtocolClientSideTranslatorPB implements MyProtocol, ProtocolTranslator, Closeable {
+
+    private final MyProtocolPB rpcProxy;
+
+    public MyProtocolClientSideTranslatorPB(InetSocketAddress addr, Configuration conf) throws IOException {
+        RPC.setProtocolEngine(conf, MyProtocolPB.class, ProtobufRpcEngine.class);
+        this.rpcProxy = RPC.getProxy(MyProtocolPB.class, RPC.getProtocolVersion(MyProtocolPB.class), addr, conf);
+    }
+
+    @Override
+    public String hello(String name) {
+        try {
+            return rpcProxy.hello(null, toHelloRequest(name)).getResult();
+        } catch (ServiceException e) {
+            throw new UncheckedIOException(ProtobufHelper.getRemoteException(e));
+        }
+    }
+
+    @Override
+    public HelloBatchResult helloBatch(String[] names) {
+        HelloBatchResponseProto response;
+        try {
+            response = rpcProxy.helloBatch(null, toHelloBatchRequest(names));
+        } catch (ServiceException e) {
+            throw new UncheckedIOException(ProtobufHelper.getRemoteException(e));
+        }
+        return fromHelloBatchResponse(response);
+    }
+
+    /**
+     * 请求、响应与protobuf消息之间的转换, MyAsyncClient共用
+     */
+    static HelloRequestProto toHelloRequest(String name) {
+        HelloRequestProto.Builder request = HelloRequestProto.newBuilder();
+        if (name != null) {
+            request.setName(name);
+        }
+        return request.build();
+    }
+
+    static HelloBatchRequestProto toHelloBatchRequest(String[] names) {
+        HelloBatchRequestProto.Builder request = HelloBatchRequestProto.newBuilder();
+        HelloRequestProto.Builder name = HelloRequestProto.newBuilder();
+        for (String n : names) {
+            name.clear();
+            if (n != null) {
+                name.setName(n);
+            }
+            request.addRequests(name);
+        }
+        return request.build();
+    }
+
+    static HelloBatchResult fromHelloBatchResponse(HelloBatchResponseProto response) {
+        HelloBatchResult result = new HelloBatchResult(response.getResultsCount());
+        for (int i = 0; i < result.size(); i++) {
+            HelloBatchEntryProto entry = response.getResults(i);
+            if (entry.hasError()) {
+                result.setError(i, entry.getError());
+            } else {
+                result.setResult(i, entry.getResult());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 版本由ProtobufRpcEngine按MyProtocolPB的@ProtocolInfo协商, 这里只返回本地版本
+     */
+    @Override
+    public long getProtocolVersion(String protocol, long clientVersion) {
+        return versionID;
+    }
+
+    @Override
+    public ProtocolSignature getProtocolSignature(String protocol, long clientVersion, int clientMethodsHash)
+            throws IOException {
+        return ProtocolSignature.getProtocolSignature(this, protocol, clientVersion, clientMethodsHash);
+    }
+
+    @Override
+    public Object getUnderlyingProxyObject() {
+        return rpcProxy;
+    }
+
+    @Override
+    public void close() {
+        RPC.stopProxy(rpcProxy);
+    }
+}
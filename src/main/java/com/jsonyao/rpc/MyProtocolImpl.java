@@ -1,6 +1,8 @@
 package com.jsonyao.rpc;
 
 import org.apache.hadoop.ipc.ProtocolSignature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 
@@ -12,16 +14,35 @@ import java.io.IOException;
  */
 public class MyProtocolImpl implements MyProtocol {
 
+    private static final Logger logger = LoggerFactory.getLogger(MyProtocolImpl.class);
+
     public String hello(String name) {
-        System.out.println("我被调用了...");
+        logger.debug("我被调用了...");
         return "hello " + name;
     }
 
+    public HelloBatchResult helloBatch(String[] names) {
+        logger.debug("我被批量调用了... {}", names.length);
+        HelloBatchResult result = new HelloBatchResult(names.length);
+        for (int i = 0; i < names.length; i++) {
+            // 单个元素失败只记录错误, 不影响其他元素
+            try {
+                if (names[i] == null) {
+                    throw new IllegalArgumentException("name is null");
+                }
+                result.setResult(i, "hello " + names[i]);
+            } catch (RuntimeException e) {
+                result.setError(i, e.toString());
+            }
+        }
+        return result;
+    }
+
     public long getProtocolVersion(String s, long l) throws IOException {
         return versionID;
     }
 
     public ProtocolSignature getProtocolSignature(String s, long l, int i) throws IOException {
-        return new ProtocolSignature();
+        return ProtocolSignature.getProtocolSignature(this, s, l, i);
     }
 }
@@ -0,0 +1,15 @@
+package com.jsonyao.rpc;
+
+import org.apache.hadoop.ipc.ProtocolInfo;
+
+/**
+ * MyProtocol的protobuf协议接口：由ProtobufRpcEngine代理和分发, 方法签名来自MyProtocol.proto生成的BlockingInterface
+ * <p>
+ * 协议名沿用MyProtocol(同Hadoop的ClientNamenodeProtocolPB), 版本号与MyProtocol.versionID无关, 修改.proto时单独维护
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+@ProtocolInfo(protocolName = "com.jsonyao.rpc.MyProtocol", protocolVersion = 1)
+public interface MyProtocolPB extends MyProtocolProtos.MyProtocolService.BlockingInterface {
+}
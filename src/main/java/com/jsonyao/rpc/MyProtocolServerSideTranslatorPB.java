@@ -0,0 +1,65 @@
+package com.jsonyao.rpc;
+
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.jsonyao.rpc.MyProtocolProtos.HelloBatchEntryProto;
+import com.jsonyao.rpc.MyProtocolProtos.HelloBatchRequestProto;
+import com.jsonyao.rpc.MyProtocolProtos.HelloBatchResponseProto;
+import com.jsonyao.rpc.MyProtocolProtos.HelloRequestProto;
+import com.jsonyao.rpc.MyProtocolProtos.HelloResponseProto;
+
+/**
+ * 服务端翻译器：把protobuf请求转换为MyProtocol调用, 再把结果转换为protobuf响应, 业务逻辑仍在MyProtocolImpl中
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class MyProtocolServerSideTranslatorPB implements MyProtocolPB {
+
+    private final MyProtocol impl;
+
+    public MyProtocolServerSideTranslatorPB(MyProtocol impl) {
+        this.impl = impl;
+    }
+
+    @Override
+    public HelloResponseProto hello(RpcController controller, HelloRequestProto request) throws ServiceException {
+        try {
+            return HelloResponseProto.newBuilder()
+                    .setResult(impl.hello(request.hasName() ? request.getName() : null))
+                    .build();
+        } catch (RuntimeException e) {
+            throw new ServiceException(e);
+        }
+    }
+
+    @Override
+    public HelloBatchResponseProto helloBatch(RpcController controller, HelloBatchRequestProto request)
+            throws ServiceException {
+        String[] names = new String[request.getRequestsCount()];
+        for (int i = 0; i < names.length; i++) {
+            HelloRequestProto name = request.getRequests(i);
+            names[i] = name.hasName() ? name.getName() : null;
+        }
+
+        HelloBatchResult result;
+        try {
+            result = impl.helloBatch(names);
+        } catch (RuntimeException e) {
+            throw new ServiceException(e);
+        }
+
+        HelloBatchResponseProto.Builder response = HelloBatchResponseProto.newBuilder();
+        HelloBatchEntryProto.Builder entry = HelloBatchEntryProto.newBuilder();
+        for (int i = 0; i < result.size(); i++) {
+            entry.clear();
+            if (result.isError(i)) {
+                entry.setError(result.getError(i));
+            } else {
+                entry.setResult(result.getResult(i));
+            }
+            response.addResults(entry);
+        }
+        return response.build();
+    }
+}
@@ -1,9 +1,20 @@
 package com.jsonyao.rpc;
 
+import com.google.protobuf.BlockingService;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
+import org.apache.hadoop.ipc.DecayRpcScheduler;
+import org.apache.hadoop.ipc.FairCallQueue;
+import org.apache.hadoop.ipc.ProtobufRpcEngine;
 import org.apache.hadoop.ipc.RPC;
+import org.apache.hadoop.ipc.RpcScheduler;
+import org.apache.hadoop.metrics2.lib.DefaultMetricsSystem;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
 
 /**
  * 服务端代码
@@ -13,16 +24,164 @@ import java.io.IOException;
  */
 public class MyServer {
 
+    private static final Logger logger = LoggerFactory.getLogger(MyServer.class);
+
+    /**
+     * RPC引擎：writable(默认, WritableRpcEngine + MyProtocol)或protobuf(ProtobufRpcEngine + MyProtocolPB), 客户端需要使用相同的引擎
+     */
+    public static final String ENGINE = "rpc.engine";
+    public static final String ENGINE_WRITABLE = "writable";
+    public static final String ENGINE_PROTOBUF = "protobuf";
+
+    /**
+     * 线程模型：reader线程读取、反序列化请求后放入调用队列, handler线程从队列取出并执行
+     * - handlers：0(默认)表示按CPU核数
+     * - readers：0(默认)表示CPU核数 / 4, 至少1个
+     * - queue.size.per.handler：调用队列长度 = handler数 * 该值, 0(默认)表示使用ipc.server.handler.queue.size
+     */
+    public static final String HANDLERS = "rpc.server.handlers";
+    public static final String READERS = "rpc.server.readers";
+    public static final String QUEUE_SIZE_PER_HANDLER = "rpc.server.queue.size.per.handler";
+
+    /**
+     * 使用FairCallQueue：按调用方近期的调用量分为priority.levels个优先级, 调用量大的调用方排到低优先级队列, 避免挤占其他调用方;
+     * 等价于设置ipc.端口号.callqueue.impl、scheduler.impl、scheduler.priority.levels
+     * - identity.provider：区分调用方的IdentityProvider实现类, 默认UserIdentityProvider, 即优先级按用户区分,
+     * 同一用户的所有连接、所有客户端进程共用一个优先级, 单用户压测时FairCallQueue只是多了一层队列; 对应ipc.端口号.identity-provider.impl
+     * - DecayRpcScheduler(Hadoop 3.2)的衰减定时器是非守护线程, 服务端stop()后仍在运行, 启用后进程需要显式退出(System.exit)
+     */
+    public static final String FAIR_CALL_QUEUE = "rpc.server.fair.call.queue";
+    public static final String PRIORITY_LEVELS = "rpc.server.priority.levels";
+    public static final String IDENTITY_PROVIDER = "rpc.server.identity.provider";
+
+    /**
+     * 打印队列指标的间隔, 0表示不打印, 见MyServerMetrics
+     */
+    public static final String METRICS_INTERVAL_MS = "rpc.server.metrics.interval.ms";
+
+    /**
+     * metrics系统的前缀, JMX中为Hadoop:service=MyServer
+     */
+    public static final String METRICS_PREFIX = "MyServer";
+
+    private static int runningServers;
+
     public static void main(String[] args) throws IOException {
         Configuration conf = new Configuration();
+
+        // 解析命令行中, 通过-D传入的参数(如-Drpc.engine=protobuf), 并添加到conf中
+        new GenericOptionsParser(conf, args);
+        RPC.Server rpcServer = start(conf, "localhost", 1234);
+        System.out.println("RPC Server start...");
+
+        long metricsIntervalMs = conf.getLong(METRICS_INTERVAL_MS, 10000L);
+        if (metricsIntervalMs > 0) {
+            new MyServerMetrics(rpcServer).start(metricsIntervalMs);
+        }
+    }
+
+    /**
+     * 启动MyProtocol服务端, 压测时也用于在同一进程内启动; 引擎由rpc.engine决定, 线程数、调用队列由rpc.server.*决定
+     *
+     * @param conf
+     * @param host
+     * @param port 0表示随机端口, 实际端口见rpcServer.getListenerAddress()
+     * @return
+     * @throws IOException
+     */
+    public static RPC.Server start(Configuration conf, String host, int port) throws IOException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int handlers = conf.getInt(HANDLERS, 0);
+        handlers = handlers > 0 ? handlers : cores;
+        int readers = conf.getInt(READERS, 0);
+        readers = readers > 0 ? readers : Math.max(1, cores / 4);
+        int queueSizePerHandler = conf.getInt(QUEUE_SIZE_PER_HANDLER, 0);
         RPC.Builder rpcBuilder = new RPC.Builder(conf);
-        rpcBuilder.setBindAddress("localhost")
-                .setPort(1234)
-                .setProtocol(MyProtocol.class)
-                .setInstance(new MyProtocolImpl());
+        rpcBuilder.setBindAddress(host)
+                .setPort(port)
+                .setNumHandlers(handlers)
+                .setnumReaders(readers);
+        if (queueSizePerHandler > 0) {
+            rpcBuilder.setQueueSizePerHandler(queueSizePerHandler);
+        }
+
+        if (conf.getBoolean(FAIR_CALL_QUEUE, false)) {
+            // 调用队列的配置按端口区分, 取的是传入的端口(随机端口时为ipc.0.*)
+            String prefix = CommonConfigurationKeys.IPC_NAMESPACE + "." + port + ".";
+            conf.set(prefix + CommonConfigurationKeys.IPC_CALLQUEUE_IMPL_KEY, FairCallQueue.class.getName());
+            conf.set(prefix + CommonConfigurationKeys.IPC_SCHEDULER_IMPL_KEY, DecayRpcScheduler.class.getName());
+            conf.setInt(prefix + CommonConfigurationKeys.IPC_SCHEDULER_PRIORITY_LEVELS_KEY,
+                    conf.getInt(PRIORITY_LEVELS, CommonConfigurationKeys.IPC_SCHEDULER_PRIORITY_LEVELS_DEFAULT_KEY));
+            String identityProvider = conf.get(IDENTITY_PROVIDER);
+            if (identityProvider != null) {
+                conf.set(prefix + CommonConfigurationKeys.IPC_IDENTITY_PROVIDER_KEY, identityProvider);
+            }
+        }
+
+        String engine = conf.get(ENGINE, ENGINE_WRITABLE);
+        if (ENGINE_PROTOBUF.equals(engine)) {
+            // 业务逻辑仍由MyProtocolImpl实现, 经服务端翻译器转换为protobuf服务
+            RPC.setProtocolEngine(conf, MyProtocolPB.class, ProtobufRpcEngine.class);
+            BlockingService service = MyProtocolProtos.MyProtocolService
+                    .newReflectiveBlockingService(new MyProtocolServerSideTranslatorPB(new MyProtocolImpl()));
+            rpcBuilder.setProtocol(MyProtocolPB.class)
+                    .setInstance(service);
+        } else if (ENGINE_WRITABLE.equals(engine)) {
+            rpcBuilder.setProtocol(MyProtocol.class)
+                    .setInstance(new MyProtocolImpl());
+        } else {
+            throw new IllegalArgumentException("unknown " + ENGINE + ": " + engine);
+        }
 
-        RPC.Server rpcServer = rpcBuilder.build();
+        RPC.Server rpcServer;
+        initMetrics();
+        try {
+            rpcServer = rpcBuilder.build();
+        } catch (IOException | RuntimeException e) {
+            shutdownMetrics();
+            throw e;
+        }
         rpcServer.start();
-        System.out.println("RPC Server start...");
+        logger.info("started {} server on {}: {} handlers, {} readers, call queue {}", engine,
+                rpcServer.getListenerAddress(), handlers, readers,
+                rpcServer.getMaxQueueSize());
+        return rpcServer;
+    }
+
+    /**
+     * 停止start(..)启动的服务端：除了rpcServer.stop(), 还停止调用队列的RpcScheduler(注销DecayRpcScheduler的metrics),
+     * 进程内最后一个服务端停止时关闭metrics系统; DecayRpcScheduler的定时器线程无法停止, 见rpc.server.fair.call.queue
+     *
+     * @param rpcServer
+     */
+    public static void stop(RPC.Server rpcServer) {
+        rpcServer.stop();
+        try {
+            // RPC.Server(Hadoop 3.2)不会停止调用队列的RpcScheduler, 也没有公开它, 通过反射取得
+            Field callQueueField = org.apache.hadoop.ipc.Server.class.getDeclaredField("callQueue");
+            callQueueField.setAccessible(true);
+            Object callQueue = callQueueField.get(rpcServer);
+            Field schedulerField = callQueue.getClass().getDeclaredField("scheduler");
+            schedulerField.setAccessible(true);
+            ((RpcScheduler) schedulerField.get(callQueue)).stop();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.warn("failed to stop rpc scheduler of {}", rpcServer.getListenerAddress(), e);
+        }
+        shutdownMetrics();
+    }
+
+    /**
+     * 初始化metrics系统, RpcMetrics在此之后才会发布到JMX和sink; 同一进程内多个服务端共用一个
+     */
+    private static synchronized void initMetrics() {
+        if (runningServers++ == 0) {
+            DefaultMetricsSystem.initialize(METRICS_PREFIX);
+        }
+    }
+
+    private static synchronized void shutdownMetrics() {
+        if (runningServers > 0 && --runningServers == 0) {
+            DefaultMetricsSystem.shutdown();
+        }
     }
 }
@@ -0,0 +1,150 @@
+package com.jsonyao.rpc;
+
+import org.apache.hadoop.ipc.RPC;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MyServer的队列指标：调用队列长度、排队时间、处理时间、连接数, 定期打印到日志, 用于判断服务端瓶颈
+ * <p>
+ * 1、来源：Hadoop的RpcMetrics(RpcActivityForPort端口号), MyServer.start(..)初始化了metrics系统, 它同时发布到JMX和hadoop-metrics2.properties配置的sink;
+ * 这里从JMX读取, 排队时间、处理时间是metrics系统最近一个统计周期(默认10秒)内的平均值
+ * 2、判断：
+ * - 队列长度持续不为0, 排队时间远大于处理时间：handler不够, 调大rpc.server.handlers
+ * - 队列长度接近0, 排队时间很小, 但客户端延迟高：瓶颈在网络读写、反序列化, 调大rpc.server.readers
+ *
+ * @author yaocs2
+ * @since 2022-08-24
+ */
+public class MyServerMetrics implements Closeable {
+
+    private static final Logger logger = LoggerFactory.getLogger(MyServerMetrics.class);
+
+    /**
+     * 某一时刻的指标
+     */
+    public static class Snapshot {
+
+        private final int callQueueLength;
+        private final int maxQueueSize;
+        private final int openConnections;
+        private final long calls;
+        private final double queueTimeMillis;
+        private final double processingTimeMillis;
+
+        Snapshot(int callQueueLength, int maxQueueSize, int openConnections, long calls, double queueTimeMillis,
+                 double processingTimeMillis) {
+            this.callQueueLength = callQueueLength;
+            this.maxQueueSize = maxQueueSize;
+            this.openConnections = openConnections;
+            this.calls = calls;
+            this.queueTimeMillis = queueTimeMillis;
+            this.processingTimeMillis = processingTimeMillis;
+        }
+
+        public int getCallQueueLength() {
+            return callQueueLength;
+        }
+
+        public int getMaxQueueSize() {
+            return maxQueueSize;
+        }
+
+        public int getOpenConnections() {
+            return openConnections;
+        }
+
+        /**
+         * 累计处理的调用数, 读取不到时为-1
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * 平均排队时间(毫秒), 读取不到时为NaN
+         */
+        public double getQueueTimeMillis() {
+            return queueTimeMillis;
+        }
+
+        /**
+         * 平均处理时间(毫秒), 读取不到时为NaN
+         */
+        public double getProcessingTimeMillis() {
+            return processingTimeMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("call queue %d/%d, %d connections, %d calls, queue time %.3f ms, processing time %.3f ms",
+                    callQueueLength, maxQueueSize, openConnections, calls, queueTimeMillis, processingTimeMillis);
+        }
+    }
+
+    private final RPC.Server server;
+    private final ObjectName rpcActivity;
+    private ScheduledExecutorService reporter;
+
+    public MyServerMetrics(RPC.Server server) {
+        this.server = server;
+        try {
+            this.rpcActivity = new ObjectName("Hadoop:service=" + MyServer.METRICS_PREFIX + ",name=RpcActivityForPort"
+                    + server.getListenerAddress().getPort());
+        } catch (JMException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    public Snapshot snapshot() {
+        long calls = -1L;
+        double queueTime = Double.NaN;
+        double processingTime = Double.NaN;
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (mBeanServer.isRegistered(rpcActivity)) {
+                calls = ((Number) mBeanServer.getAttribute(rpcActivity, "RpcQueueTimeNumOps")).longValue();
+                queueTime = ((Number) mBeanServer.getAttribute(rpcActivity, "RpcQueueTimeAvgTime")).doubleValue();
+                processingTime = ((Number) mBeanServer.getAttribute(rpcActivity, "RpcProcessingTimeAvgTime")).doubleValue();
+            }
+        } catch (JMException e) {
+            logger.debug("failed to read {}", rpcActivity, e);
+        }
+        return new Snapshot(server.getCallQueueLen(), server.getMaxQueueSize(), server.getNumOpenConnections(), calls,
+                queueTime, processingTime);
+    }
+
+    /**
+     * 每intervalMs毫秒打印一次指标
+     *
+     * @param intervalMs
+     */
+    public synchronized void start(long intervalMs) {
+        if (reporter != null) {
+            return;
+        }
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "my-server-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> logger.info("{}", snapshot()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+}